@@ -0,0 +1,227 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.os.Bundle;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.artifex.mupdf.fitz.DisplayList;
+import com.artifex.mupdf.fitz.Document;
+import com.artifex.mupdf.fitz.Page;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/* Timings of MuPDFCore's hot paths over a corpus of documents, one run of
+ * every benchmark per document. Push the corpus to the device first:
+ *
+ *	adb push corpus/. /sdcard/Android/data/com.artifex.mupdf.viewer.test/files/corpus/
+ *
+ * or pass another directory as the "corpus" instrumentation argument, and
+ * the search term as "query". Benchmarks that use a single page use the
+ * middle one. */
+@RunWith(Parameterized.class)
+public class MuPDFCoreBenchmark {
+	private static final int SCREEN_W = 1080;
+	private static final int SCREEN_H = 1920;
+	private static final long OUTLINE_INDEX_TIMEOUT_MS = 60000;
+
+	@Rule
+	public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+	@Parameterized.Parameter
+	public File file;
+
+	private MuPDFCore core;
+	private int page;
+	private PointF pageSize;
+	private String query;
+
+	@Parameterized.Parameters(name = "{0}")
+	public static Collection<Object[]> corpus() {
+		Bundle args = InstrumentationRegistry.getArguments();
+		String dir = args.getString("corpus");
+		File corpus = dir != null ? new File(dir)
+			: InstrumentationRegistry.getInstrumentation().getContext().getExternalFilesDir("corpus");
+		ArrayList<Object[]> files = new ArrayList<Object[]>();
+		File list[] = corpus != null ? corpus.listFiles() : null;
+		if (list != null) {
+			Arrays.sort(list);
+			for (File f : list)
+				if (f.isFile())
+					files.add(new Object[] { f });
+		}
+		if (files.isEmpty())
+			throw new IllegalStateException("no documents in " + corpus);
+		return files;
+	}
+
+	@Before
+	public void setUp() {
+		query = InstrumentationRegistry.getArguments().getString("query", "the");
+		core = new MuPDFCore(file.getPath());
+		page = core.countPages() / 2;
+		pageSize = core.getPageSize(page);
+	}
+
+	@After
+	public void tearDown() {
+		core.onDestroy();
+	}
+
+	/* Fitted to the screen width, as the viewer shows it at minimum zoom. */
+	private int pageWidth(int zoom) {
+		return SCREEN_W * zoom;
+	}
+
+	private int pageHeight(int zoom) {
+		return (int) (SCREEN_W * zoom * pageSize.y / pageSize.x);
+	}
+
+	/* Opening starts the outline index in the background; it is let finish
+	 * untimed, so that it does not run into the next open. */
+	@Test
+	public void openDocument() throws InterruptedException {
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			MuPDFCore c = new MuPDFCore(file.getPath());
+			c.countPages();
+			state.pauseTiming();
+			long deadline = System.currentTimeMillis() + OUTLINE_INDEX_TIMEOUT_MS;
+			while (!c.needsPassword() && c.getOutlineIndex() == null && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			c.onDestroy();
+			state.resumeTiming();
+		}
+	}
+
+	/* Another instance of the core's document, laid out as it is. */
+	private Document workerDocument() {
+		Document doc = core.acquireWorkerDocument();
+		Assume.assumeTrue("cannot open again", doc != null);
+		return doc;
+	}
+
+	@Test
+	public void loadPage() {
+		Document doc = workerDocument();
+		try {
+			BenchmarkState state = benchmarkRule.getState();
+			while (state.keepRunning()) {
+				Page p = doc.loadPage(page);
+				state.pauseTiming();
+				p.destroy();
+				state.resumeTiming();
+			}
+		} finally {
+			core.releaseWorkerDocument(doc);
+		}
+	}
+
+	@Test
+	public void buildDisplayList() {
+		Document doc = workerDocument();
+		Page p = doc.loadPage(page);
+		try {
+			BenchmarkState state = benchmarkRule.getState();
+			while (state.keepRunning()) {
+				DisplayList list = p.toDisplayList(false);
+				state.pauseTiming();
+				list.destroy();
+				state.resumeTiming();
+			}
+		} finally {
+			p.destroy();
+			core.releaseWorkerDocument(doc);
+		}
+	}
+
+	/* A screenful of the page at the given zoom, from the cached display
+	 * list. Each zoom is its own benchmark, so a regression at one shows. */
+	private void renderScreen(int zoom) {
+		Bitmap bm = Bitmap.createBitmap(SCREEN_W, SCREEN_H, Bitmap.Config.ARGB_8888);
+		try {
+			BenchmarkState state = benchmarkRule.getState();
+			while (state.keepRunning())
+				core.drawPage(bm, page, pageWidth(zoom), pageHeight(zoom), 0, 0, SCREEN_W, SCREEN_H, null);
+		} finally {
+			bm.recycle();
+		}
+	}
+
+	@Test
+	public void renderScreenZoom1() {
+		renderScreen(1);
+	}
+
+	@Test
+	public void renderScreenZoom2() {
+		renderScreen(2);
+	}
+
+	@Test
+	public void renderScreenZoom4() {
+		renderScreen(4);
+	}
+
+	/* One HQ tile from the middle of the page at twice minimum zoom. */
+	@Test
+	public void renderTile() {
+		int w = pageWidth(2);
+		int h = pageHeight(2);
+		int x = (w / 2) / TileCache.TILE_SIZE * TileCache.TILE_SIZE;
+		int y = (h / 2) / TileCache.TILE_SIZE * TileCache.TILE_SIZE;
+		Bitmap bm = Bitmap.createBitmap(TileCache.TILE_SIZE, TileCache.TILE_SIZE, Bitmap.Config.ARGB_8888);
+		try {
+			BenchmarkState state = benchmarkRule.getState();
+			while (state.keepRunning())
+				core.drawPage(bm, page, w, h, x, y, TileCache.TILE_SIZE, TileCache.TILE_SIZE, null);
+		} finally {
+			bm.recycle();
+		}
+	}
+
+	/* Every page, with the text of each extracted afresh. */
+	@Test
+	public void searchDocument() {
+		Document doc = workerDocument();
+		int count = doc.countPages();
+		try {
+			BenchmarkState state = benchmarkRule.getState();
+			while (state.keepRunning()) {
+				for (int i = 0; i < count; i++) {
+					Page p = doc.loadPage(i);
+					p.search(query);
+					p.destroy();
+				}
+			}
+		} finally {
+			core.releaseWorkerDocument(doc);
+		}
+	}
+
+	/* Every page through the core, whose text cache is warm after the
+	 * first pass. */
+	@Test
+	public void searchCached() {
+		int count = core.countPages();
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			for (int i = 0; i < count; i++)
+				core.searchPage(i, query);
+		}
+	}
+}
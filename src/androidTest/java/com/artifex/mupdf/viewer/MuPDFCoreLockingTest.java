@@ -0,0 +1,159 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.Collection;
+
+import static org.junit.Assert.assertTrue;
+
+/* Page queries must not queue up behind a render: while one page is being
+ * drawn at a high zoom, links and sizes of other pages are asked for, and
+ * must come back about as fast as they do with nothing else going on, and
+ * before that same render is done. The queried pages are loaded and the
+ * page size table is complete beforehand, so that only waiting for the
+ * lock is measured. Uses the benchmark corpus; documents whose pages draw
+ * too quickly to tell are skipped. */
+@RunWith(Parameterized.class)
+public class MuPDFCoreLockingTest {
+	private static final int SCREEN_W = 1080;
+	private static final int SCREEN_H = 1920;
+	private static final int ZOOM = 8;
+	private static final long RUN_MS = 3000;
+	private static final long SCAN_TIMEOUT_MS = 60000;
+	/* Slack over the quiet time, for scheduling noise */
+	private static final int FACTOR = 4;
+	private static final long SLACK_MS = 5;
+
+	@Parameterized.Parameter
+	public File file;
+
+	private MuPDFCore core;
+	private int page;
+	private Bitmap bm;
+
+	private volatile boolean stop;
+	private volatile boolean rendering;
+	private volatile int renders;
+
+	@Parameterized.Parameters(name = "{0}")
+	public static Collection<Object[]> corpus() {
+		return MuPDFCoreBenchmark.corpus();
+	}
+
+	@Before
+	public void setUp() {
+		core = new MuPDFCore(file.getPath());
+		page = core.countPages() / 2;
+		bm = Bitmap.createBitmap(SCREEN_W, SCREEN_H, Bitmap.Config.ARGB_8888);
+	}
+
+	@After
+	public void tearDown() {
+		bm.recycle();
+		core.onDestroy();
+	}
+
+	/* A screenful from the middle of the page at ZOOM times minimum zoom. */
+	private void render() {
+		PointF size = core.getPageSize(page);
+		int w = SCREEN_W * ZOOM;
+		int h = (int) (w * size.y / size.x);
+		core.drawPage(bm, page, w, h, (w - SCREEN_W) / 2, (h - SCREEN_H) / 2, SCREEN_W, SCREEN_H, null);
+	}
+
+	/* Pages other than the rendered one, few enough to stay in the page cache. */
+	private int[] queryPages() {
+		int count = Math.min(core.countPages() - 1, MuPDFCore.DEFAULT_PAGE_CACHE_SIZE - 1);
+		int pages[] = new int[count];
+		for (int i = 0, p = 0; i < count; p++)
+			if (p != page)
+				pages[i++] = p;
+		return pages;
+	}
+
+	/* The slowest of a round of queries over the pages, in nanoseconds. */
+	private long queryRound(int pages[]) {
+		long worst = 0;
+		for (int p : pages) {
+			long t = System.nanoTime();
+			core.getPageLinks(p);
+			core.getPageSize(p);
+			worst = Math.max(worst, System.nanoTime() - t);
+		}
+		return worst;
+	}
+
+	@Test
+	public void queriesDoNotWaitForRender() throws InterruptedException {
+		Assume.assumeTrue("only one page", core.countPages() > 1);
+
+		// Let the page size table be built, so its scan does not take the lock
+		core.getPageSize(0);
+		long deadline = System.currentTimeMillis() + SCAN_TIMEOUT_MS;
+		while (core.getCachedPageSize(0) == null && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		Assume.assumeTrue("page sizes not scanned", core.getCachedPageSize(0) != null);
+
+		// Load the queried pages, then time the queries with nothing else going
+		int pages[] = queryPages();
+		queryRound(pages);
+		long quiet = 0;
+		for (int i = 0; i < 10; i++)
+			quiet = Math.max(quiet, queryRound(pages));
+		long boundMs = FACTOR * quiet / 1000000 + SLACK_MS;
+
+		// Warm the render caches, then see whether a render takes long enough
+		render();
+		long start = System.nanoTime();
+		render();
+		long renderMs = (System.nanoTime() - start) / 1000000;
+		Assume.assumeTrue("renders too quickly: " + renderMs + "ms", renderMs > FACTOR * boundMs);
+
+		Thread renderer = new Thread() {
+			public void run() {
+				while (!stop) {
+					rendering = true;
+					render();
+					rendering = false;
+					renders++;
+				}
+			}
+		};
+		renderer.start();
+
+		int overlapped = 0;
+		long worst = 0;
+		long end = System.currentTimeMillis() + RUN_MS;
+		try {
+			for (int i = 0; System.currentTimeMillis() < end; i = (i + 1) % pages.length) {
+				if (!rendering)
+					continue;
+				int before = renders;
+				long t = System.nanoTime();
+				core.getPageLinks(pages[i]);
+				core.getPageSize(pages[i]);
+				long ms = (System.nanoTime() - t) / 1000000;
+				worst = Math.max(worst, ms);
+				assertTrue("page " + pages[i] + " queries took " + ms + "ms during a render, "
+						+ boundMs + "ms allowed", ms <= boundMs);
+				if (rendering && renders == before)
+					overlapped++;
+			}
+		} finally {
+			stop = true;
+			renderer.join();
+		}
+		assertTrue("no query finished while a render was running", overlapped > 0);
+		System.out.println(file.getName() + ": " + overlapped + " queries during renders of " + renderMs
+				+ "ms, worst " + worst + "ms, quiet " + quiet / 1000 + "us");
+	}
+}
@@ -0,0 +1,74 @@
+package com.artifex.mupdf.viewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/* Accelerator files let fitz skip the work of finding its way around a
+ * document (the page tree, the object offsets) when it is opened again.
+ * We keep them in app-private storage, one per document fingerprint and
+ * layout. The fingerprint goes by a file's path, size and the bytes at
+ * either end, so one that changed, or is laid out differently, never picks
+ * up a stale accelerator. */
+public class AcceleratorCache extends DiskCache {
+	private static final String SUFFIX = ".accel";
+
+	public static final long DEFAULT_BUDGET = 16 * 1024 * 1024;
+
+	public AcceleratorCache(File dir) {
+		this(dir, DEFAULT_BUDGET);
+	}
+
+	public AcceleratorCache(File dir, long budget) {
+		super(dir, budget);
+	}
+
+	private File file(String fingerprint, String layoutKey) {
+		return file(fingerprint + "-" + layoutKey + SUFFIX);
+	}
+
+	/* The accelerator for a document and layout, or null if we have none. */
+	public File get(String fingerprint, String layoutKey) {
+		File file = file(fingerprint, layoutKey);
+		if (!file.isFile())
+			return null;
+		touch(file);
+		return file;
+	}
+
+	/* The same, read into memory for documents opened from a buffer. */
+	public byte[] getBytes(String fingerprint, String layoutKey) {
+		File file = get(fingerprint, layoutKey);
+		if (file == null)
+			return null;
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			byte buffer[] = new byte[(int) raf.length()];
+			raf.readFully(buffer);
+			return buffer;
+		} catch (IOException x) {
+			System.out.println(x);
+			return null;
+		} finally {
+			if (raf != null)
+				try { raf.close(); } catch (IOException x) { }
+		}
+	}
+
+	/* Forget an accelerator fitz would not take. */
+	public void remove(String fingerprint, String layoutKey) {
+		file(fingerprint, layoutKey).delete();
+	}
+
+	/* Where to save a new accelerator; hand it back to put() when done. */
+	public File temporary(String fingerprint, String layoutKey) {
+		return temporary(file(fingerprint, layoutKey));
+	}
+
+	public void put(String fingerprint, String layoutKey, File tmp) {
+		if (commit(tmp, file(fingerprint, layoutKey)))
+			trim();
+	}
+}
@@ -0,0 +1,157 @@
+package com.artifex.mupdf.viewer;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+
+/* Bitmaps no longer in use, kept for reuse by page views, the HQ patch and
+ * tiles so that refreshing the view or moving between pages does not
+ * allocate a burst of screen sized bitmaps. Bitmaps are bucketed by size and
+ * config; when no exact match is free a larger one is reconfigured where
+ * the platform allows. The pool holds at most a fixed number of bytes,
+ * dropping the bitmaps that were returned longest ago first.
+ *
+ * A cancelled render may go on drawing for a while, so renders hold their
+ * bitmap until they have stopped; a held bitmap that is released only comes
+ * back to the pool once the last hold is let go. Views sharing a bitmap
+ * hold it likewise, so that it is only pooled once none of them use it. */
+public class BitmapPool {
+	private static BitmapPool singleton;
+
+	private final HashMap<String, ArrayList<Bitmap>> mBuckets = new HashMap<String, ArrayList<Bitmap>>();
+	private final LinkedList<Bitmap> mAge = new LinkedList<Bitmap>(); // Oldest first
+	private final IdentityHashMap<Bitmap, Integer> mHolds = new IdentityHashMap<Bitmap, Integer>();
+	private final IdentityHashMap<Bitmap, Boolean> mReleased = new IdentityHashMap<Bitmap, Boolean>();
+	private final long mBudget;
+	private long mBytes;
+
+	public BitmapPool(long budget) {
+		mBudget = budget;
+	}
+
+	public static synchronized BitmapPool get() {
+		if (singleton == null)
+			singleton = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+		return singleton;
+	}
+
+	private static String bucket(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+
+	private static int sizeOf(Bitmap bm) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+			return bm.getAllocationByteCount();
+		return bm.getByteCount();
+	}
+
+	private void take(Bitmap bm, ArrayList<Bitmap> list) {
+		list.remove(bm);
+		mAge.remove(bm);
+		mBytes -= sizeOf(bm);
+	}
+
+	public synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+		ArrayList<Bitmap> list = mBuckets.get(bucket(width, height, config));
+		if (list != null && !list.isEmpty()) {
+			Bitmap bm = list.get(list.size() - 1);
+			take(bm, list);
+			return bm;
+		}
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			Bitmap bm = reuse(width, height, config);
+			if (bm != null)
+				return bm;
+		}
+
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private Bitmap reuse(int width, int height, Bitmap.Config config) {
+		int needed = width * height * (config == Bitmap.Config.ARGB_8888 ? 4 : 2);
+		for (Bitmap bm : mAge) {
+			if (bm.getAllocationByteCount() >= needed) {
+				take(bm, mBuckets.get(bucket(bm.getWidth(), bm.getHeight(), bm.getConfig())));
+				bm.reconfigure(width, height, config);
+				return bm;
+			}
+		}
+		return null;
+	}
+
+	/* Keep bm out of the pool until unhold(), even if released meanwhile. */
+	public synchronized void hold(Bitmap bm) {
+		Integer holds = mHolds.get(bm);
+		mHolds.put(bm, holds == null ? 1 : holds + 1);
+	}
+
+	public synchronized void unhold(Bitmap bm) {
+		Integer holds = mHolds.get(bm);
+		if (holds == null)
+			return;
+		if (holds > 1) {
+			mHolds.put(bm, holds - 1);
+			return;
+		}
+		mHolds.remove(bm);
+		Boolean released = mReleased.remove(bm);
+		if (released == null)
+			return;
+		if (released)
+			release(bm);
+		else
+			bm.recycle(); // Released before clear(), which it would have gone with
+	}
+
+	public synchronized void release(Bitmap bm) {
+		if (bm == null || bm.isRecycled() || !bm.isMutable())
+			return;
+		if (mHolds.containsKey(bm)) {
+			mReleased.put(bm, Boolean.TRUE);
+			return;
+		}
+
+		String key = bucket(bm.getWidth(), bm.getHeight(), bm.getConfig());
+		ArrayList<Bitmap> list = mBuckets.get(key);
+		if (list == null) {
+			list = new ArrayList<Bitmap>();
+			mBuckets.put(key, list);
+		} else if (list.contains(bm)) {
+			return;
+		}
+
+		int size = sizeOf(bm);
+		if (size > mBudget) {
+			bm.recycle();
+			return;
+		}
+		while (mBytes + size > mBudget) {
+			Bitmap old = mAge.getFirst();
+			take(old, mBuckets.get(bucket(old.getWidth(), old.getHeight(), old.getConfig())));
+			old.recycle();
+		}
+
+		list.add(bm);
+		mAge.addLast(bm);
+		mBytes += size;
+	}
+
+	/* Recycle the pooled bitmaps, and those released but still held once
+	 * they are let go. */
+	public synchronized void clear() {
+		for (Bitmap bm : mAge)
+			bm.recycle();
+		for (Bitmap bm : mReleased.keySet())
+			mReleased.put(bm, Boolean.FALSE);
+		mAge.clear();
+		mBuckets.clear();
+		mBytes = 0;
+	}
+}
@@ -11,6 +11,8 @@ public class CancellableAsyncTask<Params, Result>
 {
 	private final AsyncTask<Params, Void, Result> asyncTask;
 	private final CancellableTaskDefinition<Params, Result> ourTask;
+	private int kind = RenderScheduler.TASK_PAGE;
+	private int page = -1;
 
 	public void onPreExecute()
 	{
@@ -22,6 +24,12 @@ public class CancellableAsyncTask<Params, Result>
 
 	}
 
+	// Called on the UI thread once a cancelled task has stopped running
+	public void onCancelled()
+	{
+
+	}
+
 	public CancellableAsyncTask(final CancellableTaskDefinition<Params, Result> task)
 	{
 		if (task == null)
@@ -52,6 +60,7 @@ public class CancellableAsyncTask<Params, Result>
 					@Override
 					protected void onCancelled(Result result)
 					{
+						CancellableAsyncTask.this.onCancelled();
 						task.doCleanup();
 					}
 				};
@@ -59,6 +68,8 @@ public class CancellableAsyncTask<Params, Result>
 
 	public void cancel()
 	{
+		if (this.asyncTask.getStatus() != AsyncTask.Status.FINISHED)
+			Metrics.count(Metrics.TASK_CANCELLED);
 		this.asyncTask.cancel(true);
 		ourTask.doCancel();
 
@@ -77,9 +88,17 @@ public class CancellableAsyncTask<Params, Result>
 		}
 	}
 
+	// Tell the RenderScheduler what this task is for, so it can be ordered
+	// against the other waiting work. Must be called before execute().
+	public void setPriority(int kind, int page)
+	{
+		this.kind = kind;
+		this.page = page;
+	}
+
 	public void execute(Params ... params)
 	{
-		asyncTask.execute(params);
+		asyncTask.executeOnExecutor(RenderScheduler.get().executor(kind, page), params);
 	}
 
 }
@@ -0,0 +1,75 @@
+package com.artifex.mupdf.viewer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/* A directory of files we can always make again, kept under a size budget.
+ * Files are written to the side and renamed into place, so readers never
+ * see half a file, and the least recently used ones go first when the
+ * directory grows too big. */
+public class DiskCache {
+	protected final File mDir;
+	protected final long mBudget;
+
+	protected DiskCache(File dir, long budget) {
+		mDir = dir;
+		mBudget = budget;
+		if (!mDir.isDirectory() && !mDir.mkdirs())
+			System.out.println("Cannot create cache directory " + mDir);
+	}
+
+	protected File file(String name) {
+		return new File(mDir, name);
+	}
+
+	/* Mark a file as just used. */
+	protected static void touch(File file) {
+		file.setLastModified(System.currentTimeMillis());
+	}
+
+	protected static File temporary(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/* Move a finished temporary file into place. */
+	protected boolean commit(File tmp, File file) {
+		if (tmp.renameTo(file))
+			return true;
+		tmp.delete();
+		return false;
+	}
+
+	/* Drop the least recently used files once we are over budget. */
+	protected void trim() {
+		trim(null);
+	}
+
+	/* The same, but never the file given, which is in use. */
+	protected void trim(File keep) {
+		File[] files = mDir.listFiles();
+		if (files == null)
+			return;
+		long total = 0;
+		for (File f : files)
+			total += f.length();
+		if (total <= mBudget)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long x = a.lastModified(), y = b.lastModified();
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		for (File f : files) {
+			if (total <= mBudget)
+				break;
+			if (f.equals(keep))
+				continue;
+			long length = f.length();
+			if (f.delete())
+				total -= length;
+		}
+	}
+}
@@ -12,6 +12,7 @@ import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.text.method.PasswordTransformationMethod;
@@ -32,12 +33,11 @@ import android.widget.PopupMenu;
 import android.widget.RelativeLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ViewAnimator;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.Locale;
 
 public class DocumentActivity extends Activity
@@ -47,6 +47,7 @@ public class DocumentActivity extends Activity
 
 	private final int    OUTLINE_REQUEST=0;
 	private MuPDFCore    core;
+	private DocumentSession mSession;
 	private String       mFileName;
 	private ReaderView   mDocView;
 	private View         mButtonsView;
@@ -66,12 +67,14 @@ public class DocumentActivity extends Activity
 	private ImageButton  mSearchClose;
 	private EditText mSearchText;
 	private SearchTask mSearchTask;
+	private SearchIndex mSearchIndex;
 	private AlertDialog.Builder mAlertBuilder;
 	private boolean mLinkHighlight = false;
 	private final Handler mHandler = new Handler();
 	private boolean mAlertsActive = false;
 	private AlertDialog mAlertDialog;
-	private ArrayList<OutlineActivity.Item> mFlatOutline;
+	private OutlineTree mOutline;
+	private OutlineIndex mOutlineIndex; // Null until the core has built it, and after a layout
 
 	protected int mDisplayDPI;
 	private int mLayoutEM = 16;
@@ -81,6 +84,10 @@ public class DocumentActivity extends Activity
 	protected View mLayoutButton;
 	protected PopupMenu mLayoutPopupMenu;
 
+	private AcceleratorCache getAccelerators() {
+		return new AcceleratorCache(new File(getCacheDir(), "accelerators"));
+	}
+
 	private MuPDFCore openFile(String path) {
 		int lastSlashPos = path.lastIndexOf('/');
 		mFileName = new String(lastSlashPos == -1
@@ -89,7 +96,7 @@ public class DocumentActivity extends Activity
 		System.out.println("Trying to open " + path);
 		try
 		{
-			core = new MuPDFCore(path);
+			core = new MuPDFCore(path, getAccelerators());
 		}
 		catch (Exception e)
 		{
@@ -105,18 +112,26 @@ public class DocumentActivity extends Activity
 		return core;
 	}
 
-	private MuPDFCore openBuffer(byte buffer[], String magic)
-	{
-		System.out.println("Trying to open byte buffer");
+	private MuPDFCore openMapped(Uri uri, String magic) {
+		System.out.println("Trying to map " + uri);
+		ParcelFileDescriptor pfd = null;
 		try
 		{
-			core = new MuPDFCore(buffer, magic);
+			pfd = getContentResolver().openFileDescriptor(uri, "r");
+			if (pfd == null)
+				return null;
+			core = new MuPDFCore(pfd, magic, getAccelerators());
 		}
 		catch (Exception e)
 		{
 			System.out.println(e);
 			return null;
 		}
+		finally
+		{
+			if (pfd != null)
+				try { pfd.close(); } catch (IOException e) { }
+		}
 		return core;
 	}
 
@@ -134,6 +149,18 @@ public class DocumentActivity extends Activity
 
 		mAlertBuilder = new AlertDialog.Builder(this);
 
+		// Carry on with the document the last instance had open, if any
+		mSession = (DocumentSession) getLastNonConfigurationInstance();
+		if (mSession != null) {
+			core = mSession.core;
+			mFileName = mSession.fileName;
+			if (mSession.getLayoutEM() != 0) {
+				mLayoutW = mSession.getLayoutW();
+				mLayoutH = mSession.getLayoutH();
+				mLayoutEM = mSession.getLayoutEM();
+			}
+		}
+
 		if (core == null) {
 			if (savedInstanceState != null && savedInstanceState.containsKey("FileName")) {
 				mFileName = savedInstanceState.getString("FileName");
@@ -141,7 +168,6 @@ public class DocumentActivity extends Activity
 		}
 		if (core == null) {
 			Intent intent = getIntent();
-			byte buffer[] = null;
 
 			if (Intent.ACTION_VIEW.equals(intent.getAction())) {
 				Uri uri = intent.getData();
@@ -150,44 +176,52 @@ public class DocumentActivity extends Activity
 					String path = uri.getPath();
 					core = openFile(path);
 				} else {
-					try {
-						InputStream is = getContentResolver().openInputStream(uri);
-						int len;
-						ByteArrayOutputStream bufferStream = new ByteArrayOutputStream();
-						byte[] data = new byte[16384];
-						while ((len = is.read(data, 0, data.length)) != -1) {
-							bufferStream.write(data, 0, len);
+					String name = DocumentCache.getDisplayName(getContentResolver(), uri);
+					String magic = intent.getType() != null ? intent.getType() : name;
+					// Map the document if the provider can hand us a file
+					if (magic != null)
+						core = openMapped(uri, magic);
+					if (core == null) {
+						// Otherwise copy to a local file rather than into memory,
+						// so that big documents do not exhaust the heap.
+						File file;
+						try {
+							DocumentCache documents = new DocumentCache(new File(getCacheDir(), "documents"));
+							file = documents.copy(getContentResolver(), uri, intent.getType());
 						}
-						bufferStream.flush();
-						buffer = bufferStream.toByteArray();
-						is.close();
-					}
-					catch (IOException e) {
-						String reason = e.toString();
-						Resources res = getResources();
-						AlertDialog alert = mAlertBuilder.create();
-						setTitle(String.format(Locale.ROOT, res.getString(R.string.cannot_open_document_Reason), reason));
-						alert.setButton(AlertDialog.BUTTON_POSITIVE, getString(R.string.dismiss),
-								new DialogInterface.OnClickListener() {
-									public void onClick(DialogInterface dialog, int which) {
-										finish();
-									}
-								});
-						alert.show();
-						return;
+						catch (IOException e) {
+							String reason = e.toString();
+							Resources res = getResources();
+							AlertDialog alert = mAlertBuilder.create();
+							setTitle(String.format(Locale.ROOT, res.getString(R.string.cannot_open_document_Reason), reason));
+							alert.setButton(AlertDialog.BUTTON_POSITIVE, getString(R.string.dismiss),
+									new DialogInterface.OnClickListener() {
+										public void onClick(DialogInterface dialog, int which) {
+											finish();
+										}
+									});
+							alert.show();
+							return;
+						}
+						core = openFile(file.getPath());
 					}
-					core = openBuffer(buffer, intent.getType());
+					mFileName = name != null ? name : uri.getLastPathSegment();
 				}
 				SearchTaskResult.set(null);
+				SearchHits.set(null);
 			}
-			if (core != null && core.needsPassword()) {
-				requestPassword(savedInstanceState);
-				return;
-			}
-			if (core != null && core.countPages() == 0)
-			{
-				core = null;
-			}
+			if (core != null)
+				mSession = new DocumentSession(core, mFileName);
+		}
+		if (core != null && !mSession.isUnlocked()) {
+			requestPassword(savedInstanceState);
+			return;
+		}
+		if (core != null && core.countPages() == 0)
+		{
+			mSession.release();
+			mSession = null;
+			core = null;
 		}
 		if (core == null)
 		{
@@ -224,6 +258,7 @@ public class DocumentActivity extends Activity
 				new DialogInterface.OnClickListener() {
 					public void onClick(DialogInterface dialog, int which) {
 						if (core.authenticatePassword(mPasswordView.getText().toString())) {
+							mSession.setUnlocked();
 							createUI(savedInstanceState);
 						} else {
 							requestPassword(savedInstanceState);
@@ -240,14 +275,39 @@ public class DocumentActivity extends Activity
 		alert.show();
 	}
 
+	/* Lay the document out in the background, showing our page as soon as
+	 * it is ready and the rest as they come. Changing the layout again
+	 * meanwhile drops this one. The session runs the layout, so that an
+	 * instance replacing us carries on following it. */
 	public void relayoutDocument() {
-		int loc = core.layout(mDocView.mCurrent, mLayoutW, mLayoutH, mLayoutEM);
-		mFlatOutline = null;
-		mDocView.mHistory.clear();
-		mDocView.refresh();
-		mDocView.setDisplayedViewIndex(loc);
+		mSession.startLayout(mDocView.mCurrent, mLayoutW, mLayoutH, mLayoutEM);
 	}
 
+	private final DocumentSession.LayoutObserver mLayoutObserver = new DocumentSession.LayoutObserver() {
+		public void onLayoutProgress(int pageCount, int page, boolean first, boolean done) {
+			if (core == null || mDocView == null)
+				return;
+			if (first) {
+				mOutline = null;
+				mOutlineIndex = null;
+				mDocView.mHistory.clear();
+				mDocView.refresh();
+				if (page >= 0)
+					mDocView.setDisplayedViewIndex(page);
+			} else {
+				// Only the page count has grown
+				int index = mDocView.getDisplayedViewIndex();
+				updatePageNumView(index);
+				mPageSlider.setMax((pageCount - 1) * mPageSliderRes);
+				mPageSlider.setProgress(index * mPageSliderRes);
+			}
+			if (done) {
+				mOutlineIndex = null;
+				startSearchIndex();
+			}
+		}
+	};
+
 	public void createUI(Bundle savedInstanceState) {
 		if (core == null)
 			return;
@@ -260,7 +320,7 @@ public class DocumentActivity extends Activity
 				if (core == null)
 					return;
 
-				mPageNumberView.setText(String.format(Locale.ROOT, "%d / %d", i + 1, core.countPages()));
+				updatePageNumView(i);
 				mPageSlider.setMax((core.countPages() - 1) * mPageSliderRes);
 				mPageSlider.setProgress(i * mPageSliderRes);
 				super.onMoveToChild(i);
@@ -292,7 +352,11 @@ public class DocumentActivity extends Activity
 			//	}
 			//}
 		};
-		mDocView.setAdapter(new PageAdapter(this, core));
+		PageAdapter adapter = new PageAdapter(this, core);
+		adapter.setTileCache(mSession.getTileCache());
+		adapter.setThumbnailCache(new ThumbnailCache(new File(getCacheDir(), "thumbnails"), core));
+		adapter.setProgressive(true);
+		mDocView.setAdapter(adapter);
 
 		mSearchTask = new SearchTask(this, core) {
 			@Override
@@ -304,7 +368,36 @@ public class DocumentActivity extends Activity
 				// via overridden onChildSetup method.
 				mDocView.resetupChildren();
 			}
+
+			@Override
+			protected void onHitsFound(SearchHits hits, int page) {
+				// Highlight the new hits if the page is on screen
+				mDocView.resetupChildren();
+			}
+
+			@Override
+			protected void onSearchAllDone(SearchHits hits) {
+				if (hits.getHitCount() == 0) {
+					mAlertBuilder.setTitle(R.string.text_not_found);
+					AlertDialog alert = mAlertBuilder.create();
+					alert.setButton(AlertDialog.BUTTON_POSITIVE, getString(R.string.dismiss),
+							(DialogInterface.OnClickListener)null);
+					alert.show();
+				} else {
+					Toast.makeText(DocumentActivity.this, getResources().getQuantityString(R.plurals.occurrences_found,
+							hits.getHitCount(), hits.getHitCount()), Toast.LENGTH_SHORT).show();
+				}
+			}
 		};
+		// A retained session may have an index for this layout already. If
+		// a layout is still going, one is started once it is done.
+		if (!mSession.isLayingOut()) {
+			mSearchIndex = mSession.getSearchIndex();
+			if (mSearchIndex != null)
+				mSearchTask.setIndex(mSearchIndex);
+			else
+				startSearchIndex();
+		}
 
 		// Make the buttons overlay, and store all its
 		// controls in variables
@@ -325,7 +418,7 @@ public class DocumentActivity extends Activity
 		mPageSlider.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
 			public void onStopTrackingTouch(SeekBar seekBar) {
 				mDocView.pushHistory();
-				mDocView.setDisplayedViewIndex((seekBar.getProgress()+mPageSliderRes/2)/mPageSliderRes);
+				mDocView.setDisplayedViewIndex(snapToChapter((seekBar.getProgress()+mPageSliderRes/2)/mPageSliderRes));
 			}
 
 			public void onStartTrackingTouch(SeekBar seekBar) {}
@@ -368,6 +461,10 @@ public class DocumentActivity extends Activity
 					SearchTaskResult.set(null);
 					mDocView.resetupChildren();
 				}
+				if (SearchHits.get() != null && !mSearchText.getText().toString().equals(SearchHits.get().txt)) {
+					SearchHits.set(null);
+					mDocView.resetupChildren();
+				}
 			}
 			public void beforeTextChanged(CharSequence s, int start, int count,
 					int after) {}
@@ -403,6 +500,13 @@ public class DocumentActivity extends Activity
                 search(1);
             }
         });
+		// Long press to find and highlight every occurrence
+		mSearchFwd.setOnLongClickListener(new View.OnLongClickListener() {
+			public boolean onLongClick(View v) {
+				searchAll();
+				return true;
+			}
+		});
 
 		mLinkButton.setOnClickListener(new View.OnClickListener() {
 			public void onClick(View v) {
@@ -438,16 +542,13 @@ public class DocumentActivity extends Activity
 		if (core.hasOutline()) {
 			mOutlineButton.setOnClickListener(new View.OnClickListener() {
 				public void onClick(View v) {
-					if (mFlatOutline == null)
-						mFlatOutline = core.getOutline();
-					if (mFlatOutline != null) {
-						Intent intent = new Intent(DocumentActivity.this, OutlineActivity.class);
-						Bundle bundle = new Bundle();
-						bundle.putInt("POSITION", mDocView.getDisplayedViewIndex());
-						bundle.putSerializable("OUTLINE", mFlatOutline);
-						intent.putExtras(bundle);
-						startActivityForResult(intent, OUTLINE_REQUEST);
-					}
+					if (mOutline == null)
+						mOutline = new OutlineTree(core, core.getOutline());
+					// Shared rather than sent, being too big for an intent
+					OutlineTree.set(mOutline);
+					Intent intent = new Intent(DocumentActivity.this, OutlineActivity.class);
+					intent.putExtra("POSITION", mDocView.getDisplayedViewIndex());
+					startActivityForResult(intent, OUTLINE_REQUEST);
 				}
 			});
 		} else {
@@ -470,6 +571,9 @@ public class DocumentActivity extends Activity
 		layout.addView(mDocView);
 		layout.addView(mButtonsView);
 		setContentView(layout);
+
+		// Hear how a layout started by the instance before us goes
+		mSession.setLayoutObserver(mLayoutObserver);
 	}
 
 	@Override
@@ -524,17 +628,47 @@ public class DocumentActivity extends Activity
 		}
 	}
 
+	/* (Re)build the index for the current layout in the background, if
+	 * the document is worth one. */
+	private void startSearchIndex() {
+		mSearchIndex = null;
+		if (SearchIndex.isWanted(core)) {
+			mSearchIndex = new SearchIndex(core, new SearchIndexCache(new File(getCacheDir(), "indexes")));
+			mSearchIndex.start();
+		}
+		mSession.setSearchIndex(mSearchIndex);
+		if (mSearchTask != null)
+			mSearchTask.setIndex(mSearchIndex);
+	}
+
+	/* Hand the open document on to the instance replacing us. */
+	@Override
+	public Object onRetainNonConfigurationInstance() {
+		return mSession != null ? mSession.acquire() : null;
+	}
+
 	public void onDestroy()
 	{
+		// Only our bitmaps depend on the screen; the session keeps the rest
 		if (mDocView != null) {
 			mDocView.applyToChildren(new ReaderView.ViewMapper() {
 				void applyToView(View view) {
 					((PageView)view).releaseBitmaps();
 				}
 			});
+			((PageAdapter) mDocView.getAdapter()).releaseBitmaps();
+		}
+		// The outline holds on to the core
+		if (OutlineTree.get() == mOutline)
+			OutlineTree.set(null);
+		mOutline = null;
+		if (mSession != null) {
+			mSession.setLayoutObserver(null);
+			mSession.release();
 		}
-		if (core != null)
-			core.onDestroy();
+		// Last, as closing the session gives its tiles back to the pool
+		BitmapPool.get().clear();
+		mSession = null;
 		core = null;
 		super.onDestroy();
 	}
@@ -640,16 +774,42 @@ public class DocumentActivity extends Activity
 			hideKeyboard();
 			mTopBarSwitcher.setDisplayedChild(mTopBarMode.ordinal());
 			SearchTaskResult.set(null);
+			SearchHits.set(null);
 			// Make the ReaderView act on the change to mSearchTaskResult
 			// via overridden onChildSetup method.
 			mDocView.resetupChildren();
 		}
 	}
 
+	private OutlineIndex getOutlineIndex() {
+		if (mOutlineIndex == null)
+			mOutlineIndex = core.getOutlineIndex();
+		return mOutlineIndex;
+	}
+
 	private void updatePageNumView(int index) {
 		if (core == null)
 			return;
-		mPageNumberView.setText(String.format(Locale.ROOT, "%d / %d", index + 1, core.countPages()));
+		String pages = String.format(Locale.ROOT, "%d / %d", index + 1, core.countPages());
+		OutlineIndex outline = getOutlineIndex();
+		String chapter = outline != null ? outline.getChapterTitle(index) : null;
+		mPageNumberView.setText(chapter != null ? chapter + "\n" + pages : pages);
+	}
+
+	/* A slider dropped within a percent of the document of the start of a
+	 * chapter goes to the start, so that chapters can be found by feel. */
+	private int snapToChapter(int page) {
+		int near = core.countPages() / 100;
+		OutlineIndex outline = getOutlineIndex();
+		if (near == 0 || outline == null)
+			return page;
+		int before = outline.previousChapterPage(page + 1);
+		int after = outline.nextChapterPage(page);
+		if (before >= 0 && page - before <= near && (after < 0 || page - before <= after - page))
+			return before;
+		if (after >= 0 && after - page <= near)
+			return after;
+		return page;
 	}
 
 	private void makeButtonsView() {
@@ -687,11 +847,38 @@ public class DocumentActivity extends Activity
 	private void search(int direction) {
 		hideKeyboard();
 		int displayPage = mDocView.getDisplayedViewIndex();
+
+		// Step through the hits of a finished "find all" without searching again
+		SearchHits hits = SearchHits.get();
+		if (hits != null && hits.isComplete() && hits.txt.equals(mSearchText.getText().toString())) {
+			int page = hits.nextPage(displayPage, direction);
+			if (page >= 0) {
+				mDocView.setDisplayedViewIndex(page);
+			} else {
+				mAlertBuilder.setTitle(R.string.no_further_occurrences_found);
+				AlertDialog alert = mAlertBuilder.create();
+				alert.setButton(AlertDialog.BUTTON_POSITIVE, getString(R.string.dismiss),
+						(DialogInterface.OnClickListener)null);
+				alert.show();
+			}
+			return;
+		}
+
 		SearchTaskResult r = SearchTaskResult.get();
 		int searchPage = r != null ? r.pageNumber : -1;
 		mSearchTask.go(mSearchText.getText().toString(), direction, displayPage, searchPage);
 	}
 
+	private void searchAll() {
+		hideKeyboard();
+		String text = mSearchText.getText().toString();
+		if (text.length() == 0)
+			return;
+		SearchTaskResult.set(null);
+		SearchHits.set(mSearchTask.goAll(text));
+		mDocView.resetupChildren();
+	}
+
 	@Override
 	public boolean onSearchRequested() {
 		if (mButtonsVisible && mTopBarMode == TopBarMode.Search) {
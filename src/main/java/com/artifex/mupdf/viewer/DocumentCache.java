@@ -0,0 +1,145 @@
+package com.artifex.mupdf.viewer;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/* Local copies of documents we were handed as content:// URIs, so that they
+ * can be opened by path instead of being read whole into the Java heap.
+ * The stream is copied through a small buffer, so memory use does not grow
+ * with the size of the document. A copy is reused as long as the provider
+ * reports the same size for the URI, and the same modification time where
+ * it gives one; that time is part of the copy's name, so a changed document
+ * gets a new copy, and the thumbnails, accelerators and search indexes
+ * keyed on the old one are not used for it. The copy's own modification
+ * time only says when it was last used. */
+public class DocumentCache extends DiskCache {
+	public static final long DEFAULT_BUDGET = 512 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	public DocumentCache(File dir) {
+		this(dir, DEFAULT_BUDGET);
+	}
+
+	public DocumentCache(File dir, long budget) {
+		super(dir, budget);
+	}
+
+	/* The name the provider gives the document, or null. */
+	public static String getDisplayName(ContentResolver cr, Uri uri) {
+		Cursor cursor = null;
+		try {
+			cursor = cr.query(uri, new String[] { OpenableColumns.DISPLAY_NAME }, null, null, null);
+			if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0))
+				return cursor.getString(0);
+		} catch (RuntimeException x) {
+			System.out.println(x);
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		return null;
+	}
+
+	/* A number the provider gives for the document, such as its size, or
+	 * -1 if it does not say. */
+	private static long getLong(ContentResolver cr, Uri uri, String column) {
+		Cursor cursor = null;
+		try {
+			cursor = cr.query(uri, new String[] { column }, null, null, null);
+			if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0))
+				return cursor.getLong(0);
+		} catch (RuntimeException x) {
+			System.out.println(x);
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		return -1;
+	}
+
+	/* The part of a copy's name that comes from the URI. */
+	private static String base(Uri uri) {
+		CRC32 crc = new CRC32();
+		crc.update(uri.toString().getBytes());
+		return Long.toHexString(crc.getValue());
+	}
+
+	/* Name the copy after the URI and the provider's modification time,
+	 * keeping an extension fitz can go by. */
+	private File file(Uri uri, long modified, String name, String mimeType) {
+		String extension = null;
+		if (name != null && name.lastIndexOf('.') >= 0)
+			extension = name.substring(name.lastIndexOf('.') + 1);
+		else if (mimeType != null)
+			extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+		String base = base(uri);
+		if (modified >= 0)
+			base += "-" + Long.toHexString(modified);
+		return file(extension != null ? base + "." + extension : base);
+	}
+
+	/* Drop older copies of the same URI, now that we have a new one. */
+	private void dropOthers(Uri uri, File keep) {
+		File[] files = mDir.listFiles();
+		if (files == null)
+			return;
+		String base = base(uri);
+		for (File f : files) {
+			String name = f.getName();
+			if (f.equals(keep) || name.endsWith(".tmp"))
+				continue;
+			if (name.equals(base) || name.startsWith(base + ".") || name.startsWith(base + "-"))
+				f.delete();
+		}
+	}
+
+	/* Returns a local file holding the document behind the URI. */
+	public File copy(ContentResolver cr, Uri uri, String mimeType) throws IOException {
+		long modified = getLong(cr, uri, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+		File file = file(uri, modified, getDisplayName(cr, uri), mimeType);
+		long size = getLong(cr, uri, OpenableColumns.SIZE);
+		if (size >= 0 && file.isFile() && file.length() == size) {
+			touch(file);
+			return file;
+		}
+
+		File tmp = temporary(file);
+		InputStream in = cr.openInputStream(uri);
+		if (in == null)
+			throw new IOException("cannot open " + uri);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			byte[] data = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = in.read(data, 0, data.length)) != -1)
+				out.write(data, 0, len);
+			out.close();
+			out = null;
+		} catch (IOException x) {
+			tmp.delete();
+			throw x;
+		} finally {
+			in.close();
+			if (out != null)
+				try { out.close(); } catch (IOException x) { }
+		}
+
+		if (!commit(tmp, file))
+			throw new IOException("cannot store " + file);
+		dropOthers(uri, file);
+		trim(file);
+		return file;
+	}
+}
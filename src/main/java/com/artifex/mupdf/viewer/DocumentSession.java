@@ -0,0 +1,164 @@
+package com.artifex.mupdf.viewer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/* An open document together with what we have worked out about it: the
+ * core with its page sizes and caches, the search index and the HQ tiles.
+ * None of these depend on the screen size, so a session outlives activity
+ * recreation on a configuration change, being handed on through
+ * onRetainNonConfigurationInstance(). Each holder acquires it and releases
+ * it when done; the last release closes the document.
+ *
+ * A background layout also belongs to the session, not to the activity
+ * that asked for it, so that an activity recreated while it is going on
+ * hears what is left of it, and what it missed meanwhile. */
+public class DocumentSession {
+	public final MuPDFCore core;
+	public final String fileName;
+	private final TileCache mTiles;
+	private SearchIndex mSearchIndex;
+	private boolean mUnlocked;
+	private int mLayoutW, mLayoutH, mLayoutEM; // Zero until laid out by the user
+
+	public interface LayoutObserver {
+		/* Called on the UI thread as a background layout goes, as for
+		 * MuPDFCore.LayoutListener. first is set the first time, when the
+		 * document has changed over to the new layout and the views must
+		 * be refreshed. Progress that came while no observer was set is
+		 * handed to the next one in a single call. */
+		void onLayoutProgress(int pageCount, int page, boolean first, boolean done);
+	}
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private MuPDFCore.LayoutListener mLayoutListener; // Of the layout under way
+	private LayoutObserver mLayoutObserver;
+	private boolean mLayoutShown;
+	// What the observer has not heard yet
+	private boolean mMissed, mMissedFirst, mMissedDone;
+	private int mMissedPageCount, mMissedPage;
+	private int mRefs = 1;
+
+	/* The new session is held once, by the caller. */
+	public DocumentSession(MuPDFCore core, String fileName) {
+		this.core = core;
+		this.fileName = fileName;
+		mTiles = new TileCache((int) (Runtime.getRuntime().maxMemory() / 1024 / 8));
+	}
+
+	public synchronized DocumentSession acquire() {
+		if (mRefs == 0)
+			throw new IllegalStateException("session already closed");
+		mRefs++;
+		return this;
+	}
+
+	public void release() {
+		synchronized (this) {
+			if (--mRefs > 0)
+				return;
+		}
+		if (mSearchIndex != null)
+			mSearchIndex.stop();
+		mLayoutListener = null;
+		mTiles.clear();
+		core.onDestroy();
+	}
+
+	public TileCache getTileCache() {
+		return mTiles;
+	}
+
+	/* Replacing the index stops the old one. */
+	public synchronized void setSearchIndex(SearchIndex index) {
+		if (mSearchIndex != null && mSearchIndex != index)
+			mSearchIndex.stop();
+		mSearchIndex = index;
+	}
+
+	public synchronized SearchIndex getSearchIndex() {
+		return mSearchIndex;
+	}
+
+	/* Whether the password, if the document needs one, has been given. */
+	public synchronized boolean isUnlocked() {
+		return mUnlocked || !core.needsPassword();
+	}
+
+	public synchronized void setUnlocked() {
+		mUnlocked = true;
+	}
+
+	/* The layout the core was last asked for, for a new activity to carry
+	 * on from; if not laid out yet, getLayoutEM() is zero. */
+	public synchronized void setLayout(int w, int h, int em) {
+		mLayoutW = w;
+		mLayoutH = h;
+		mLayoutEM = em;
+	}
+
+	public synchronized int getLayoutW() {
+		return mLayoutW;
+	}
+
+	public synchronized int getLayoutH() {
+		return mLayoutH;
+	}
+
+	public synchronized int getLayoutEM() {
+		return mLayoutEM;
+	}
+
+	/* Lay the document out anew in the background, from the given page,
+	 * dropping any layout under way. Returns false if there is nothing to
+	 * wait for. Call on the UI thread. */
+	public boolean startLayout(int page, int w, int h, int em) {
+		setLayout(w, h, em);
+		mLayoutShown = false;
+		mMissed = mMissedFirst = mMissedDone = false;
+		MuPDFCore.LayoutListener listener = new MuPDFCore.LayoutListener() {
+			public void onLayoutProgress(final int pageCount, final int page, final boolean done) {
+				final MuPDFCore.LayoutListener self = this;
+				mHandler.post(new Runnable() {
+					public void run() {
+						if (self == mLayoutListener)
+							layoutProgress(pageCount, page, done);
+					}
+				});
+			}
+		};
+		mLayoutListener = core.layoutInBackground(page, w, h, em, listener) ? listener : null;
+		return mLayoutListener != null;
+	}
+
+	public boolean isLayingOut() {
+		return mLayoutListener != null;
+	}
+
+	private void layoutProgress(int pageCount, int page, boolean done) {
+		boolean first = !mLayoutShown;
+		mLayoutShown = true;
+		if (done)
+			mLayoutListener = null;
+		if (mLayoutObserver != null) {
+			mLayoutObserver.onLayoutProgress(pageCount, page, first, done);
+			return;
+		}
+		mMissed = true;
+		mMissedPageCount = pageCount;
+		if (first) {
+			mMissedFirst = true;
+			mMissedPage = page;
+		}
+		mMissedDone |= done;
+	}
+
+	/* Set on the UI thread, or null when the observer goes away. */
+	public void setLayoutObserver(LayoutObserver observer) {
+		mLayoutObserver = observer;
+		if (observer != null && mMissed) {
+			mMissed = false;
+			observer.onLayoutProgress(mMissedPageCount, mMissedPage, mMissedFirst, mMissedDone);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.artifex.mupdf.viewer;
+
+import android.os.ParcelFileDescriptor;
+
+import com.artifex.mupdf.fitz.SeekableInputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* A document read through a memory mapping rather than from the Java heap.
+ * The OS pages the file in as fitz touches it and can drop it again under
+ * pressure, and several streams over the same file share the page cache.
+ * Files larger than a single mapping can address are mapped in chunks. */
+public class MappedSeekableInputStream implements SeekableInputStream {
+	private static final int CHUNK_SIZE = 1 << 30;
+
+	private final ByteBuffer[] chunks;
+	private final long size;
+	private long position;
+
+	/* The mapping stays valid after the channel is closed. */
+	public MappedSeekableInputStream(FileChannel channel) throws IOException {
+		size = channel.size();
+		chunks = new ByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+		for (int i = 0; i < chunks.length; i++) {
+			long offset = (long) i * CHUNK_SIZE;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, size - offset));
+		}
+	}
+
+	private MappedSeekableInputStream(ByteBuffer[] chunks, long size) {
+		this.chunks = chunks;
+		this.size = size;
+	}
+
+	/* Another stream over the same mapping, with its own position. */
+	public MappedSeekableInputStream duplicate() {
+		ByteBuffer[] copy = new ByteBuffer[chunks.length];
+		for (int i = 0; i < chunks.length; i++)
+			copy[i] = chunks[i].duplicate();
+		return new MappedSeekableInputStream(copy, size);
+	}
+
+	public static MappedSeekableInputStream open(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return new MappedSeekableInputStream(in.getChannel());
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Fails for descriptors that cannot be mapped, such as pipes. */
+	public static MappedSeekableInputStream open(ParcelFileDescriptor pfd) throws IOException {
+		FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+		try {
+			return new MappedSeekableInputStream(in.getChannel());
+		} finally {
+			in.close();
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/* Read from the given offset without moving the stream position. */
+	public synchronized int read(long offset, byte[] b, int off, int len) {
+		if (offset >= size)
+			return -1;
+		int total = 0;
+		while (len > 0 && offset < size) {
+			ByteBuffer chunk = chunks[(int) (offset / CHUNK_SIZE)];
+			int at = (int) (offset % CHUNK_SIZE);
+			int n = Math.min(len, chunk.limit() - at);
+			chunk.position(at);
+			chunk.get(b, off, n);
+			offset += n;
+			off += n;
+			len -= n;
+			total += n;
+		}
+		return total;
+	}
+
+	public synchronized int read(byte[] b) throws IOException {
+		int n = read(position, b, 0, b.length);
+		if (n > 0)
+			position += n;
+		return n;
+	}
+
+	public synchronized long seek(long offset, int whence) throws IOException {
+		long p;
+		switch (whence) {
+		case SEEK_SET: p = offset; break;
+		case SEEK_CUR: p = position + offset; break;
+		case SEEK_END: p = size + offset; break;
+		default: throw new IOException("invalid whence: " + whence);
+		}
+		if (p < 0)
+			throw new IOException("cannot seek before start of stream");
+		position = p;
+		return position;
+	}
+
+	public synchronized long position() throws IOException {
+		return position;
+	}
+}
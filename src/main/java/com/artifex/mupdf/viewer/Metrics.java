@@ -0,0 +1,199 @@
+package com.artifex.mupdf.viewer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Timings and counts from the viewer's hot paths. Off by default, when
+ * recording costs no more than reading a flag. When on, timings are kept
+ * in histograms and counts in counters, both by name, and each is also
+ * handed to the sink if one is set.
+ *
+ * Time an operation like this:
+ *
+ *	long start = Metrics.start();
+ *	...
+ *	Metrics.time(Metrics.RENDER, pageNum, start);
+ */
+public class Metrics {
+	/* Timings, in nanoseconds */
+	public static final String LOAD_PAGE = "load_page";
+	public static final String DISPLAY_LIST = "display_list";
+	public static final String RENDER = "render";
+	public static final String TEXT = "text";
+	public static final String SEARCH = "search";
+
+	/* Counters */
+	public static final String PAGE_CACHE_HIT = "page_cache_hit";
+	public static final String PAGE_CACHE_MISS = "page_cache_miss";
+	public static final String DISPLAY_LIST_CACHE_HIT = "display_list_cache_hit";
+	public static final String DISPLAY_LIST_CACHE_MISS = "display_list_cache_miss";
+	public static final String TEXT_CACHE_HIT = "text_cache_hit";
+	public static final String TEXT_CACHE_MISS = "text_cache_miss";
+	public static final String TASK_CANCELLED = "task_cancelled";
+	public static final String LAYOUT_OOM = "layout_oom";
+
+	public interface Sink {
+		/* page is -1 where the timing is not for one page. Called on the
+		 * thread that did the work, so keep it quick. */
+		void onTiming(String name, int page, long nanos);
+		void onCount(String name, long delta);
+	}
+
+	private static volatile boolean enabled;
+	private static volatile Sink sink;
+	private static final HashMap<String, Histogram> histograms = new HashMap<String, Histogram>();
+	private static final HashMap<String, AtomicLong> counters = new HashMap<String, AtomicLong>();
+
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setSink(Sink s) {
+		sink = s;
+	}
+
+	/* The start time to pass to time(), or 0 if we are not recording. */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	public static void time(String name, int page, long start) {
+		if (start == 0 || !enabled)
+			return;
+		long nanos = System.nanoTime() - start;
+		histogram(name).add(nanos);
+		Sink s = sink;
+		if (s != null)
+			s.onTiming(name, page, nanos);
+	}
+
+	public static void count(String name) {
+		count(name, 1);
+	}
+
+	public static void count(String name, long delta) {
+		if (!enabled)
+			return;
+		counter(name).addAndGet(delta);
+		Sink s = sink;
+		if (s != null)
+			s.onCount(name, delta);
+	}
+
+	public static Histogram histogram(String name) {
+		synchronized (histograms) {
+			Histogram h = histograms.get(name);
+			if (h == null) {
+				h = new Histogram();
+				histograms.put(name, h);
+			}
+			return h;
+		}
+	}
+
+	private static AtomicLong counter(String name) {
+		synchronized (counters) {
+			AtomicLong c = counters.get(name);
+			if (c == null) {
+				c = new AtomicLong();
+				counters.put(name, c);
+			}
+			return c;
+		}
+	}
+
+	public static long getCount(String name) {
+		synchronized (counters) {
+			AtomicLong c = counters.get(name);
+			return c != null ? c.get() : 0;
+		}
+	}
+
+	public static void reset() {
+		synchronized (histograms) {
+			histograms.clear();
+		}
+		synchronized (counters) {
+			counters.clear();
+		}
+	}
+
+	/* Everything recorded so far, one line per histogram or counter. */
+	public static String dump() {
+		StringBuilder sb = new StringBuilder();
+		synchronized (histograms) {
+			ArrayList<String> names = new ArrayList<String>(histograms.keySet());
+			Collections.sort(names);
+			for (String name : names)
+				sb.append(name).append(": ").append(histograms.get(name)).append('\n');
+		}
+		synchronized (counters) {
+			ArrayList<String> names = new ArrayList<String>(counters.keySet());
+			Collections.sort(names);
+			for (String name : names)
+				sb.append(name).append(": ").append(counters.get(name).get()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/* Durations in power of two buckets of microseconds: bucket i holds
+	 * those under 2^i us, so the last one holds anything over half an hour. */
+	public static class Histogram {
+		private static final int BUCKETS = 32;
+
+		private final long buckets[] = new long[BUCKETS];
+		private long count;
+		private long total;
+		private long max;
+
+		synchronized void add(long nanos) {
+			long micros = nanos / 1000;
+			int i = 64 - Long.numberOfLeadingZeros(micros);
+			buckets[Math.min(i, BUCKETS - 1)]++;
+			count++;
+			total += nanos;
+			if (nanos > max)
+				max = nanos;
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		public synchronized long getMeanNanos() {
+			return count > 0 ? total / count : 0;
+		}
+
+		public synchronized long getMaxNanos() {
+			return max;
+		}
+
+		/* An upper bound on the given percentile (0 to 100), in microseconds. */
+		public synchronized long getPercentileMicros(double percentile) {
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return 1L << i;
+			}
+			return 0;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "n=" + count
+				+ " mean=" + getMeanNanos() / 1000 + "us"
+				+ " p50<" + getPercentileMicros(50) + "us"
+				+ " p90<" + getPercentileMicros(90) + "us"
+				+ " p99<" + getPercentileMicros(99) + "us"
+				+ " max=" + max / 1000 + "us";
+		}
+	}
+}
@@ -2,153 +2,1049 @@ package com.artifex.mupdf.viewer;
 
 import android.graphics.Bitmap;
 import android.graphics.PointF;
-import android.os.Environment;
+import android.graphics.RectF;
+import android.os.ParcelFileDescriptor;
+import android.util.LruCache;
+import android.util.SparseIntArray;
 
 import com.artifex.mupdf.fitz.Cookie;
 import com.artifex.mupdf.fitz.DisplayList;
 import com.artifex.mupdf.fitz.Document;
 import com.artifex.mupdf.fitz.Link;
+import com.artifex.mupdf.fitz.Location;
 import com.artifex.mupdf.fitz.Matrix;
 import com.artifex.mupdf.fitz.Outline;
+import com.artifex.mupdf.fitz.PDFAnnotation;
+import com.artifex.mupdf.fitz.PDFDocument;
+import com.artifex.mupdf.fitz.PDFObject;
+import com.artifex.mupdf.fitz.PDFPage;
 import com.artifex.mupdf.fitz.Page;
+import com.artifex.mupdf.fitz.Point;
 import com.artifex.mupdf.fitz.Quad;
 import com.artifex.mupdf.fitz.Rect;
 import com.artifex.mupdf.fitz.RectI;
+import com.artifex.mupdf.fitz.SeekableInputStream;
+import com.artifex.mupdf.fitz.StructuredText;
 import com.artifex.mupdf.fitz.android.AndroidDrawDevice;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
 
 public class MuPDFCore
 {
+	/* Enough for the current page, its neighbours and the pages the
+	 * sizing and link tasks touch while the user flips back and forth. */
+	public static final int DEFAULT_PAGE_CACHE_SIZE = 8;
+
+	/* Display lists live on the native heap, budget in kilobytes. */
+	public static final int DEFAULT_DISPLAY_LIST_CACHE_SIZE = 64 * 1024;
+
+	/* Extracted text lives on the native heap too, budget in kilobytes. */
+	public static final int DEFAULT_TEXT_CACHE_SIZE = 16 * 1024;
+
+	/* Size guess for pages we cannot look inside (non-PDF documents). */
+	private static final int DEFAULT_DISPLAY_LIST_SIZE = 64;
+
+	/* What fitz holds for each character of structured text (its quad,
+	 * origin, font and size) and for each line and block, in bytes. */
+	private static final int TEXT_CHAR_BYTES = 80;
+	private static final int TEXT_LINE_BYTES = 64;
+	private static final int TEXT_BLOCK_BYTES = 64;
+
+	/* Bytes from each end of a buffer that go into its fingerprint. */
+	private static final int FINGERPRINT_SAMPLE = 64 * 1024;
+
 	private int resolution;
 	private Document doc;
+	private String fingerprint;
+	private AcceleratorCache accelerators;
+
+	/* Where the document came from, so that we can open it again for
+	 * workers that should not queue up behind docLock. */
+	private String sourcePath;
+	private MappedSeekableInputStream sourceStream;
+	private String sourceMagic;
+	private String password;
+	private final ArrayList<Document> idleDocs = new ArrayList<Document>();
+	private final HashMap<Document, Integer> workerDocs = new HashMap<Document, Integer>();
 	private Outline[] outline;
-	private int pageCount = -1;
-	private int currentPage;
-	private Page page;
-	private float pageWidth;
-	private float pageHeight;
-	private DisplayList displayList;
+	private volatile OutlineIndex outlineIndex; // Null until built for the current layout
+	private int outlineIndexRequest = -1; // The layout request it is being built for
+	private volatile int pageCount = -1;
+	private PageCache pageCache = new PageCache(DEFAULT_PAGE_CACHE_SIZE);
+	/* Where the annotations and form fields of PDF pages were when they
+	 * were first loaded or last updated, so that an edit can redraw where
+	 * they were as well as where they are. */
+	private final HashMap<Integer, Rect[]> annotBounds = new HashMap<Integer, Rect[]>();
+	private WeightedCache<RenderList> displayListCache = new WeightedCache<RenderList>(DEFAULT_DISPLAY_LIST_CACHE_SIZE);
+	private WeightedCache<PageText> textCache = new WeightedCache<PageText>(DEFAULT_TEXT_CACHE_SIZE);
+
+	/* Page geometry for the current layout, widths and heights interleaved.
+	 * Filled by a background pass and only published once complete, so it
+	 * can be read without taking the lock. */
+	private volatile float[] pageSizes;
+	private int layoutGeneration;
+	private boolean pageSizeScanStarted;
 
 	/* Default to "A Format" pocket book size. */
 	private int layoutW = 312;
 	private int layoutH = 504;
 	private int layoutEM = 10;
 
-	public Document getDoc() {
-		return doc;
+	/* Bumped to cancel a background layout; layoutRunning while one is
+	 * going, until its last chapter is done. */
+	private volatile int layoutRequest;
+	private boolean layoutRunning;
+
+	/* What we know of a layout once all of it has been done, so that going
+	 * back to it does not mean laying the whole document out again. With the
+	 * first page of each chapter, pages can be found and numbered by laying
+	 * out just their own chapter. */
+	private static class LayoutResult {
+		final int chapterStarts[]; // The page count last
+		float pageSizes[];
+		Outline outline[];
+		OutlineIndex outlineIndex;
+
+		LayoutResult(int chapterStarts[]) {
+			this.chapterStarts = chapterStarts;
+		}
+
+		int pageCount() {
+			return chapterStarts[chapterStarts.length - 1];
+		}
+	}
+
+	private static final int MAX_LAYOUTS = 4;
+	private final LinkedHashMap<String, LayoutResult> layouts = new LinkedHashMap<String, LayoutResult>(MAX_LAYOUTS, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, LayoutResult> eldest) {
+			return size() > MAX_LAYOUTS;
+		}
+	};
+	private LayoutResult currentLayout; // Null until the layout is complete
+
+	public interface LayoutListener {
+		/* Called on the layout thread as the new layout grows, with the
+		 * pages laid out so far, the new number of the page we were on (or
+		 * -1 if it could not be found) and whether the whole document is
+		 * laid out. The first call is once the pages up to ours are. A
+		 * layout that fails is done too, with page -1. */
+		void onLayoutProgress(int pageCount, int page, boolean done);
+	}
+
+	/* Pages are keyed by page number, least recently used ones are destroyed
+	 * when the cache is full. */
+	private static class PageCache extends LruCache<Integer, Page> {
+		PageCache(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		protected void entryRemoved(boolean evicted, Integer pageNum, Page oldPage, Page newPage) {
+			oldPage.destroy();
+		}
 	}
 
-	public static String getAcceleratorPath(String documentPath) {
-		String acceleratorPath = documentPath.substring(1);
-		acceleratorPath = acceleratorPath.replace(File.separatorChar, '%');
-		acceleratorPath = acceleratorPath.replace('\\', '%');
-		acceleratorPath = acceleratorPath.replace(':', '%');
-		String tmpdir = Environment.getExternalStorageDirectory().getPath() + "/amupdf";
-		return new StringBuffer(tmpdir).append(File.separatorChar).append(acceleratorPath).append(".accel").toString();
+	/* Document, pages and the caches holding them may only be touched by one
+	 * thread at a time. Rendering a display list needs no lock: each thread
+	 * gets its own cloned fitz context, and a list is pinned while it runs. */
+	private final Object docLock = new Object();
+
+	/* Something cached that is only destroyed once it has been evicted and
+	 * nothing is still using it outside the lock. */
+	private static abstract class Pinned<T> {
+		final T value;
+		private int pins;
+		private boolean dropped;
+
+		Pinned(T value) {
+			this.value = value;
+		}
+
+		protected abstract void destroy();
+
+		synchronized void pin() {
+			pins++;
+		}
+
+		synchronized void unpin() {
+			if (--pins == 0 && dropped)
+				destroy();
+		}
+
+		synchronized void drop() {
+			dropped = true;
+			if (pins == 0)
+				destroy();
+		}
 	}
 
-	public static boolean acceleratorValid(File documentFile, File acceleratorFile) {
-		long documentModified = documentFile.lastModified();
-		long acceleratorModified = acceleratorFile.lastModified();
-		return acceleratorModified != 0 && acceleratorModified > documentModified;
+	/* A display list, pinned while a render runs it. */
+	private static class RenderList extends Pinned<DisplayList> {
+		RenderList(DisplayList list) {
+			super(list);
+		}
+
+		protected void destroy() {
+			value.destroy();
+		}
+	}
+
+	/* Structured text, pinned while it is searched or read. */
+	private static class PageText extends Pinned<StructuredText> {
+		PageText(StructuredText text) {
+			super(text);
+		}
+
+		protected void destroy() {
+			value.destroy();
+		}
+	}
+
+	/* Pinned things keyed by page number and weighed by their estimated
+	 * size, so a few heavy pages push out many light ones. */
+	private static class WeightedCache<T extends Pinned<?>> extends LruCache<Integer, T> {
+		private final SparseIntArray sizes = new SparseIntArray();
+
+		WeightedCache(int kbytes) {
+			super(kbytes);
+		}
+
+		void put(int pageNum, T value, int kbytes) {
+			/* Never let a single entry evict itself. */
+			sizes.put(pageNum, Math.max(1, Math.min(kbytes, maxSize())));
+			put(pageNum, value);
+		}
+
+		@Override
+		protected int sizeOf(Integer pageNum, T value) {
+			return sizes.get(pageNum, DEFAULT_DISPLAY_LIST_SIZE);
+		}
+
+		@Override
+		protected void entryRemoved(boolean evicted, Integer pageNum, T oldValue, T newValue) {
+			if (newValue == null)
+				sizes.delete(pageNum);
+			oldValue.drop();
+		}
+	}
+
+	public Document getDoc() {
+		return doc;
 	}
 
 	public MuPDFCore(String filename) {
-		//File selectedFile = new File(filename);
-		//String documentPath = selectedFile.getAbsolutePath();
-		//String acceleratorPath = getAcceleratorPath(documentPath);
-		//if (acceleratorValid(selectedFile, new File(acceleratorPath))) {
-		//	doc = Document.openDocument(documentPath, acceleratorPath);
-		//} else {
-		//	doc = Document.openDocument(documentPath);
-		//}
-
-		doc = Document.openDocument(filename);
-		doc.layout(layoutW, layoutH, layoutEM);
-		pageCount = doc.countPages();
-		resolution = 160;
-		currentPage = -1;
-		//doc.saveAccelerator(acceleratorPath);
+		this(filename, null);
+	}
+
+	public MuPDFCore(String filename, AcceleratorCache accelerators) {
+		this.accelerators = accelerators;
+		sourcePath = filename;
+		fingerprint = fingerprint(new File(filename));
+		String layoutKey = getLayoutKey();
+		File accel = accelerators != null ? accelerators.get(fingerprint, layoutKey) : null;
+		if (accel != null) {
+			try {
+				doc = Document.openDocument(filename, accel.getPath());
+			} catch (RuntimeException x) {
+				System.out.println(x);
+				accelerators.remove(fingerprint, layoutKey);
+				accel = null;
+			}
+		}
+		if (doc == null)
+			doc = Document.openDocument(filename);
+		opened(layoutKey, accel != null);
 	}
 
 	public MuPDFCore(byte buffer[], String magic) {
-		doc = Document.openDocument(buffer, magic);
+		this(buffer, magic, null);
+	}
+
+	public MuPDFCore(byte buffer[], String magic, AcceleratorCache accelerators) {
+		this.accelerators = accelerators;
+		fingerprint = fingerprint(buffer);
+		String layoutKey = getLayoutKey();
+		byte accel[] = accelerators != null ? accelerators.getBytes(fingerprint, layoutKey) : null;
+		if (accel != null) {
+			try {
+				doc = Document.openDocument(buffer, magic, accel);
+			} catch (RuntimeException x) {
+				System.out.println(x);
+				accelerators.remove(fingerprint, layoutKey);
+				accel = null;
+			}
+		}
+		if (doc == null)
+			doc = Document.openDocument(buffer, magic);
+		opened(layoutKey, accel != null);
+	}
+
+	/* Open a document through a memory mapping, so that it is paged in by
+	 * the OS as needed rather than held in the Java heap. */
+	public MuPDFCore(ParcelFileDescriptor pfd, String magic, AcceleratorCache accelerators) throws IOException {
+		this(MappedSeekableInputStream.open(pfd), magic, accelerators);
+	}
+
+	public MuPDFCore(MappedSeekableInputStream stream, String magic, AcceleratorCache accelerators) {
+		this.accelerators = accelerators;
+		sourceStream = stream.duplicate();
+		sourceMagic = magic;
+		fingerprint = fingerprint(stream);
+		String layoutKey = getLayoutKey();
+		File accelFile = accelerators != null ? accelerators.get(fingerprint, layoutKey) : null;
+		SeekableInputStream accel = null;
+		if (accelFile != null) {
+			try {
+				accel = MappedSeekableInputStream.open(accelFile);
+				doc = Document.openDocument(stream, magic, accel);
+			} catch (IOException x) {
+				System.out.println(x);
+				accel = null;
+			} catch (RuntimeException x) {
+				System.out.println(x);
+				accelerators.remove(fingerprint, layoutKey);
+				accel = null;
+			}
+		}
+		if (doc == null)
+			doc = Document.openDocument(stream, magic);
+		opened(layoutKey, accel != null);
+	}
+
+	private void opened(String layoutKey, boolean accelerated) {
 		doc.layout(layoutW, layoutH, layoutEM);
 		pageCount = doc.countPages();
+		recordLayout(chapterStarts(doc));
 		resolution = 160;
-		currentPage = -1;
+		if (accelerators != null && !accelerated)
+			saveAccelerator(layoutKey);
+		startOutlineIndex();
+	}
+
+	/* Write an accelerator for the layout we opened with, off the UI thread
+	 * so that the first open is no slower than it was. Only reflowable
+	 * documents have them; fitz has none for PDF. Callers are the
+	 * constructors, or hold docLock. */
+	private void saveAccelerator(final String layoutKey) {
+		if (!doc.isReflowable())
+			return;
+		Thread save = new Thread("MuPDFCore accelerator") {
+			public void run() {
+				File tmp = accelerators.temporary(fingerprint, layoutKey);
+				synchronized (docLock) {
+					// Not if the document has been laid out again since
+					if (doc == null || !layoutKey.equals(getLayoutKey())) {
+						tmp.delete();
+						return;
+					}
+					try {
+						doc.saveAccelerator(tmp.getPath());
+					} catch (RuntimeException x) {
+						System.out.println(x);
+						tmp.delete();
+						return;
+					}
+				}
+				accelerators.put(fingerprint, layoutKey, tmp);
+			}
+		};
+		save.setDaemon(true);
+		save.setPriority(Thread.MIN_PRIORITY);
+		save.start();
+	}
+
+	/* A file is known by where it is, its size and the bytes at either end.
+	 * Not by when it last changed, since DocumentCache marks its copies as
+	 * used by touching them. */
+	private static String fingerprint(File file) {
+		CRC32 crc = new CRC32();
+		crc.update(file.getAbsolutePath().getBytes());
+		long size = file.length();
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			int n = (int) Math.min(size, FINGERPRINT_SAMPLE);
+			byte sample[] = new byte[n];
+			raf.readFully(sample);
+			crc.update(sample);
+			raf.seek(size - n);
+			raf.readFully(sample);
+			crc.update(sample);
+		} catch (IOException x) {
+			// Fitz will not get far either; at least tell versions apart
+			return Long.toHexString(crc.getValue()) + Long.toHexString(size) + Long.toHexString(file.lastModified());
+		} finally {
+			if (raf != null)
+				try { raf.close(); } catch (IOException x) { }
+		}
+		return Long.toHexString(crc.getValue()) + Long.toHexString(size);
+	}
+
+	/* A buffer has no name, so go by its size and the bytes at either end. */
+	private static String fingerprint(byte buffer[]) {
+		CRC32 crc = new CRC32();
+		int n = Math.min(buffer.length, FINGERPRINT_SAMPLE);
+		crc.update(buffer, 0, n);
+		crc.update(buffer, buffer.length - n, n);
+		return Long.toHexString(crc.getValue()) + Long.toHexString(buffer.length);
+	}
+
+	/* Likewise for a mapped stream. */
+	private static String fingerprint(MappedSeekableInputStream stream) {
+		CRC32 crc = new CRC32();
+		long size = stream.size();
+		int n = (int) Math.min(size, FINGERPRINT_SAMPLE);
+		byte sample[] = new byte[n];
+		stream.read(0, sample, 0, n);
+		crc.update(sample);
+		stream.read(size - n, sample, 0, n);
+		crc.update(sample);
+		return Long.toHexString(crc.getValue()) + Long.toHexString(size);
+	}
+
+	/* Identifies the document across runs, for keying things cached on disk. */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/* Identifies the current layout; page geometry changes with it. */
+	public String getLayoutKey() {
+		synchronized (docLock) {
+			return layoutKey(layoutW, layoutH, layoutEM);
+		}
+	}
+
+	/* Goes up each time the document is laid out, for telling whether
+	 * something was made for the layout it has now. */
+	public int getLayoutGeneration() {
+		synchronized (docLock) {
+			return layoutGeneration;
+		}
+	}
+
+	private static String layoutKey(int w, int h, int em) {
+		return w + "x" + h + "x" + em;
 	}
 
 	public String getTitle() {
-		return doc.getMetaData(Document.META_INFO_TITLE);
+		synchronized (docLock) {
+			return doc.getMetaData(Document.META_INFO_TITLE);
+		}
 	}
 
 	public int countPages() {
 		return pageCount;
 	}
 
-	public synchronized boolean isReflowable() {
-		return doc.isReflowable();
+	public boolean isReflowable() {
+		synchronized (docLock) {
+			return doc.isReflowable();
+		}
+	}
+
+	public int layout(int oldPage, int w, int h, int em) {
+		synchronized (docLock) {
+			if (w != layoutW || h != layoutH || em != layoutEM || layoutRunning) {
+				System.out.println("LAYOUT: " + w + "," + h);
+				layoutRequest++;
+				layoutRunning = false;
+				Location location = location(clampPage(oldPage));
+				long mark = doc.makeBookmark(location);
+				layoutW = w;
+				layoutH = h;
+				layoutEM = em;
+				doc.layout(layoutW, layoutH, layoutEM);
+				dropPages();
+				invalidatePageSizes();
+				dropWorkerDocuments();
+				if (!restoreLayout()) {
+					pageCount = doc.countPages();
+					outlineIndex = null;
+					recordLayout(chapterStarts(doc));
+					loadOutline();
+				}
+				startOutlineIndex();
+				return findBookmark(mark, location.chapter);
+			}
+			return oldPage;
+		}
 	}
 
-	public synchronized int layout(int oldPage, int w, int h, int em) {
-		if (w != layoutW || h != layoutH || em != layoutEM) {
+	/**
+	 * Lay the document out anew on a background thread, telling listener
+	 * how it goes. The chapters up to the one holding oldPage are laid out
+	 * on another instance of the document while this one goes on showing
+	 * the old layout. Then the instances are swapped, and the remaining
+	 * chapters follow one at a time, with the page count growing as each is
+	 * done. Another layout cancels this one. Returns false if the layout is
+	 * unchanged, and there is nothing to wait for.
+	 */
+	public boolean layoutInBackground(int oldPage, final int w, final int h, final int em, final LayoutListener listener) {
+		final int request;
+		final Location location;
+		final int oldW, oldH, oldEM;
+		final String password;
+		synchronized (docLock) {
+			if (doc == null || (w == layoutW && h == layoutH && em == layoutEM && !layoutRunning))
+				return false;
 			System.out.println("LAYOUT: " + w + "," + h);
-			layoutW = w;
-			layoutH = h;
-			layoutEM = em;
-			long mark = doc.makeBookmark(doc.locationFromPageNumber(oldPage));
-			doc.layout(layoutW, layoutH, layoutEM);
-			currentPage = -1;
-			pageCount = doc.countPages();
-			outline = null;
-			try {
-				outline = doc.loadOutline();
-			} catch (Exception ex) {
-				/* ignore error */
+			request = ++layoutRequest;
+			layoutRunning = true;
+			location = location(clampPage(oldPage));
+			oldW = layoutW;
+			oldH = layoutH;
+			oldEM = layoutEM;
+			password = this.password;
+		}
+
+		Thread thread = new Thread("MuPDFCore layout") {
+			public void run() {
+				relayout(request, location, oldW, oldH, oldEM, w, h, em, password, listener);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	/* A bookmark is only good on the instance it was made on, laid out as
+	 * it was then, so each instance makes its own from the old location. */
+	private void relayout(int request, Location location, int oldW, int oldH, int oldEM,
+			int w, int h, int em, String password, LayoutListener listener) {
+		int markChapter = location.chapter;
+		// A layout we have done before only needs the chapter we are in
+		boolean restored = false;
+		int page = -1;
+		try {
+			synchronized (docLock) {
+				if (request != layoutRequest || doc == null)
+					return;
+				if (layouts.containsKey(layoutKey(w, h, em))) {
+					long mark = doc.makeBookmark(location);
+					layoutW = w;
+					layoutH = h;
+					layoutEM = em;
+					doc.layout(w, h, em);
+					dropPages();
+					invalidatePageSizes();
+					dropWorkerDocuments();
+					restored = restoreLayout();
+					layoutRunning = false;
+					startOutlineIndex();
+					if (restored)
+						page = findBookmark(mark, markChapter);
+				}
+			}
+		} catch (RuntimeException x) {
+			System.out.println(x);
+			layoutFailed(request, listener);
+			return;
+		}
+		if (restored) {
+			listener.onLayoutProgress(pageCount, page, true);
+			return;
+		}
+
+		// Without the lock, on a new instance nobody else can see
+		String key = layoutKey(w, h, em);
+		boolean accelerated = accelerators != null && accelerators.get(fingerprint, key) != null;
+		Document next = reopen(key, password);
+		int count = 0;
+		int chapter = 0;
+		int chapters;
+		boolean finished = false;
+		try {
+			if (next != null) {
+				// Only the chapter we are in is laid out the old way
+				next.layout(oldW, oldH, oldEM);
+				long mark = next.makeBookmark(location);
+				next.layout(w, h, em);
+				int starts[] = new int[markChapter + 1];
+				for (; chapter <= markChapter && request == layoutRequest; chapter++) {
+					starts[chapter] = count;
+					count += next.countPages(chapter);
+				}
+				if (request != layoutRequest)
+					return;
+				Location found = next.findBookmark(mark);
+				if (found.chapter >= 0 && found.chapter <= markChapter && found.page >= 0)
+					page = starts[found.chapter] + found.page;
+				else
+					page = starts[markChapter];
+			}
+
+			synchronized (docLock) {
+				if (request != layoutRequest || doc == null)
+					return;
+				if (next != null) {
+					dropPages();
+					doc.destroy();
+					doc = next;
+					next = null;
+				} else {
+					// We cannot open another instance, so lay this one out
+					// in place and keep the lock until ours is ready
+					long mark = doc.makeBookmark(location);
+					doc.layout(w, h, em);
+					for (; chapter <= markChapter; chapter++)
+						count += doc.countPages(chapter);
+					dropPages();
+					page = findBookmark(mark, markChapter);
+				}
+				layoutW = w;
+				layoutH = h;
+				layoutEM = em;
+				invalidatePageSizes();
+				// Not before every page is laid out
+				pageSizeScanStarted = true;
+				dropWorkerDocuments();
+				outline = null;
+				outlineIndex = null;
+				pageCount = count;
+				chapters = doc.countChapters();
 			}
-			return doc.pageNumberFromLocation(doc.findBookmark(mark));
+			listener.onLayoutProgress(count, page, false);
+
+			// Take the lock per chapter, so that rendering can go on in between
+			for (; chapter < chapters; chapter++) {
+				synchronized (docLock) {
+					if (request != layoutRequest || doc == null)
+						return;
+					count += doc.countPages(chapter);
+					pageCount = count;
+				}
+				listener.onLayoutProgress(count, page, false);
+			}
+
+			synchronized (docLock) {
+				if (request != layoutRequest || doc == null)
+					return;
+				recordLayout(chapterStarts(doc));
+				loadOutline();
+				pageSizeScanStarted = false;
+				layoutRunning = false;
+				startOutlineIndex();
+				// For reopen() to find next time; a buffer is never reopened
+				if (accelerators != null && !accelerated && (sourcePath != null || sourceStream != null))
+					saveAccelerator(key);
+				finished = true;
+			}
+			listener.onLayoutProgress(count, page, true);
+		} catch (RuntimeException x) {
+			System.out.println(x);
+		} finally {
+			if (next != null)
+				next.destroy();
+			if (!finished)
+				layoutFailed(request, listener);
+		}
+	}
+
+	/* Give up on a layout that went wrong, rather than leave it running
+	 * for ever. We keep whatever pages we had, and say we are done. */
+	private void layoutFailed(int request, LayoutListener listener) {
+		int count;
+		synchronized (docLock) {
+			if (request != layoutRequest || doc == null)
+				return;
+			layoutRunning = false;
+			pageSizeScanStarted = false;
+			count = pageCount;
+		}
+		listener.onLayoutProgress(count, -1, true);
+	}
+
+	/* The page a bookmark made before laying the document out is on now,
+	 * or failing that the first page of the chapter it was in, or -1.
+	 * Callers hold docLock. */
+	private int findBookmark(long mark, int chapter) {
+		try {
+			int page = pageNumber(doc.findBookmark(mark));
+			if (page >= 0)
+				return page;
+		} catch (RuntimeException x) {
+			System.out.println(x);
 		}
-		return oldPage;
+		if (chapter < 0 || chapter >= doc.countChapters())
+			return -1;
+		return pageNumber(new Location(chapter, 0));
 	}
-    public synchronized void gotoPage(int pageNum) {
-		/* TODO: page cache */
+
+	/* The first page of each chapter, and the page count last. */
+	private static int[] chapterStarts(Document doc) {
+		int chapters = doc.countChapters();
+		int starts[] = new int[chapters + 1];
+		for (int i = 0; i < chapters; i++)
+			starts[i + 1] = starts[i] + doc.countPages(i);
+		return starts;
+	}
+
+	/* Remember the now complete current layout. */
+	private void recordLayout(int chapterStarts[]) {
+		currentLayout = new LayoutResult(chapterStarts);
+		layouts.put(getLayoutKey(), currentLayout);
+	}
+
+	/* Take up what we know of the current layout from when we last had it,
+	 * if we do. The caller has laid the document out and dropped what
+	 * depended on the old layout. */
+	private boolean restoreLayout() {
+		currentLayout = layouts.get(getLayoutKey());
+		if (currentLayout == null)
+			return false;
+		pageCount = currentLayout.pageCount();
+		pageSizes = currentLayout.pageSizes;
+		pageSizeScanStarted = pageSizes != null;
+		outline = currentLayout.outline;
+		outlineIndex = currentLayout.outlineIndex;
+		return true;
+	}
+
+	private void loadOutline() {
+		outline = null;
+		try {
+			outline = doc.loadOutline();
+		} catch (Exception ex) {
+			/* ignore error */
+		}
+		if (currentLayout != null)
+			currentLayout.outline = outline;
+	}
+
+	/* Build the outline index for the current layout on a background
+	 * thread, once the layout is complete, unless we have it or are on it
+	 * already. Resolving every entry can mean laying out every chapter, so
+	 * it must not happen on the UI thread. Callers hold docLock. */
+	private void startOutlineIndex() {
+		if (outlineIndex != null || currentLayout == null || outlineIndexRequest == layoutRequest)
+			return;
+		// Links cannot be resolved until the document is unlocked
+		if (doc.needsPassword() && password == null)
+			return;
+		final int request = layoutRequest;
+		outlineIndexRequest = request;
+		Thread thread = new Thread("MuPDFCore outline index") {
+			public void run() {
+				buildOutlineIndex(request);
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/* Resolve every titled entry, sorting them by page while keeping the
+	 * outline order of those on the same page. The lock is taken per entry,
+	 * so that rendering can go on in between; a new layout drops the index. */
+	private void buildOutlineIndex(int request) {
+		ArrayList<Outline> entries = new ArrayList<Outline>();
+		synchronized (docLock) {
+			if (request != layoutRequest || doc == null)
+				return;
+			if (outline == null)
+				loadOutline();
+			if (outline != null)
+				collectOutline(entries, outline);
+		}
+		long keys[] = new long[entries.size()];
+		IdentityHashMap<Outline, Integer> entryPages = new IdentityHashMap<Outline, Integer>();
+		int n = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			int page;
+			synchronized (docLock) {
+				if (request != layoutRequest || doc == null)
+					return;
+				try {
+					page = pageNumber(doc.resolveLink(entries.get(i)));
+				} catch (RuntimeException x) {
+					page = -1;
+				}
+			}
+			entryPages.put(entries.get(i), page);
+			if (page >= 0)
+				keys[n++] = ((long) page << 32) | i;
+		}
+		Arrays.sort(keys, 0, n);
+		int pages[] = new int[n];
+		String titles[] = new String[n];
+		for (int i = 0; i < n; i++) {
+			pages[i] = (int) (keys[i] >>> 32);
+			titles[i] = entries.get((int) keys[i]).title;
+		}
+		OutlineIndex index = new OutlineIndex(pages, titles, entryPages);
+		synchronized (docLock) {
+			if (request != layoutRequest || doc == null)
+				return;
+			outlineIndex = index;
+			if (currentLayout != null)
+				currentLayout.outlineIndex = index;
+		}
+	}
+
+	private static void collectOutline(ArrayList<Outline> result, Outline list[]) {
+		for (Outline node : list) {
+			if (node.title != null)
+				result.add(node);
+			if (node.down != null)
+				collectOutline(result, node.down);
+		}
+	}
+
+	/* Find pages through the chapter table when we have one, so that fitz
+	 * need not lay out every chapter before the page. Callers hold docLock. */
+	private Location location(int pageNum) {
+		if (currentLayout == null)
+			return doc.locationFromPageNumber(pageNum);
+		int starts[] = currentLayout.chapterStarts;
+		int i = Arrays.binarySearch(starts, 0, starts.length - 1, pageNum);
+		int chapter = i >= 0 ? i : -i - 2;
+		// Skip chapters without pages
+		while (chapter + 1 < starts.length - 1 && starts[chapter + 1] <= pageNum)
+			chapter++;
+		return new Location(chapter, pageNum - starts[chapter]);
+	}
+
+	private int pageNumber(Location location) {
+		if (location == null)
+			return -1;
+		if (currentLayout == null
+				|| location.chapter < 0 || location.chapter >= currentLayout.chapterStarts.length - 1)
+			return doc.pageNumberFromLocation(location);
+		return currentLayout.chapterStarts[location.chapter] + location.page;
+	}
+
+	private void dropPages() {
+		textCache.evictAll();
+		displayListCache.evictAll();
+		pageCache.evictAll();
+	}
+
+	private int clampPage(int pageNum) {
 		if (pageNum > pageCount-1)
-			pageNum = pageCount-1;
+			return pageCount-1;
 		else if (pageNum < 0)
-			pageNum = 0;
-		if (pageNum != currentPage) {
-			currentPage = pageNum;
-			if (page != null)
-				page.destroy();
-			page = null;
-			if (displayList != null)
-				displayList.destroy();
-			displayList = null;
-			page = doc.loadPage(pageNum);
-			Rect b = page.getBounds();
-			pageWidth = b.x1 - b.x0;
-			pageHeight = b.y1 - b.y0;
+			return 0;
+		return pageNum;
+	}
+
+	/* Callers must hold docLock for as long as they use the page. */
+	private Page loadPage(int pageNum) {
+		pageNum = clampPage(pageNum);
+		Page page = pageCache.get(pageNum);
+		if (page == null) {
+			Metrics.count(Metrics.PAGE_CACHE_MISS);
+			long start = Metrics.start();
+			Location location = location(pageNum);
+			page = doc.loadPage(location.chapter, location.page);
+			Metrics.time(Metrics.LOAD_PAGE, pageNum, start);
+			pageCache.put(pageNum, page);
+			if (page instanceof PDFPage && !annotBounds.containsKey(pageNum))
+				annotBounds.put(pageNum, bounds(annotations((PDFPage) page)));
+		} else {
+			Metrics.count(Metrics.PAGE_CACHE_HIT);
+		}
+		return page;
+	}
+
+	public void gotoPage(int pageNum) {
+		synchronized (docLock) {
+			loadPage(pageNum);
+		}
+	}
+
+	/**
+	 * Change how many loaded pages are kept around. The pages currently
+	 * cached are destroyed.
+	 */
+	public void setPageCacheSize(int capacity) {
+		synchronized (docLock) {
+			if (capacity < 1)
+				throw new IllegalArgumentException("page cache size must be at least 1");
+			pageCache.evictAll();
+			pageCache = new PageCache(capacity);
+		}
+	}
+
+	public int getPageCacheHits() {
+		synchronized (docLock) {
+			return pageCache.hitCount();
+		}
+	}
+
+	public int getPageCacheMisses() {
+		synchronized (docLock) {
+			return pageCache.missCount();
+		}
+	}
+
+	/**
+	 * Change the memory budget, in kilobytes, for cached display lists.
+	 * The display lists currently cached are destroyed.
+	 */
+	public void setDisplayListCacheSize(int kbytes) {
+		synchronized (docLock) {
+			if (kbytes < 1)
+				throw new IllegalArgumentException("display list cache size must be at least 1");
+			displayListCache.evictAll();
+			displayListCache = new WeightedCache<RenderList>(kbytes);
+		}
+	}
+
+	public int getDisplayListCacheHits() {
+		synchronized (docLock) {
+			return displayListCache.hitCount();
+		}
+	}
+
+	public int getDisplayListCacheMisses() {
+		synchronized (docLock) {
+			return displayListCache.missCount();
+		}
+	}
+
+	public void setTextCacheSize(int kbytes) {
+		synchronized (docLock) {
+			if (kbytes < 1)
+				throw new IllegalArgumentException("text cache size must be at least 1");
+			textCache.evictAll();
+			textCache = new WeightedCache<PageText>(kbytes);
+		}
+	}
+
+	public int getTextCacheHits() {
+		synchronized (docLock) {
+			return textCache.hitCount();
+		}
+	}
+
+	public int getTextCacheMisses() {
+		synchronized (docLock) {
+			return textCache.missCount();
 		}
 	}
 
-	public synchronized PointF getPageSize(int pageNum) {
-		gotoPage(pageNum);
-		return new PointF(pageWidth, pageHeight);
+	/* A display list holds roughly what the content streams describe, so use
+	 * their encoded length as the estimate. */
+	private int estimateDisplayListSize(int pageNum) {
+		if (!(doc instanceof PDFDocument))
+			return DEFAULT_DISPLAY_LIST_SIZE;
+		try {
+			PDFObject contents = ((PDFDocument) doc).findPage(pageNum).get("Contents");
+			long length = 0;
+			if (contents.isArray()) {
+				for (int i = 0; i < contents.size(); i++)
+					length += contents.get(i).get("Length").asInteger();
+			} else {
+				length = contents.get("Length").asInteger();
+			}
+			return (int) Math.max(DEFAULT_DISPLAY_LIST_SIZE / 4, length * 4 / 1024);
+		} catch (RuntimeException ex) {
+			return DEFAULT_DISPLAY_LIST_SIZE;
+		}
+	}
+
+	private RenderList loadDisplayList(int pageNum) {
+		RenderList list = displayListCache.get(pageNum);
+		if (list == null) {
+			Metrics.count(Metrics.DISPLAY_LIST_CACHE_MISS);
+			Page page = loadPage(pageNum);
+			long start = Metrics.start();
+			list = new RenderList(page.toDisplayList(false));
+			Metrics.time(Metrics.DISPLAY_LIST, pageNum, start);
+			displayListCache.put(pageNum, list, estimateDisplayListSize(pageNum));
+		} else {
+			Metrics.count(Metrics.DISPLAY_LIST_CACHE_HIT);
+		}
+		return list;
 	}
 
-	public synchronized void onDestroy() {
-		if (displayList != null)
-			displayList.destroy();
-		displayList = null;
-		if (page != null)
-			page.destroy();
-		page = null;
-		if (doc != null)
-			doc.destroy();
-		doc = null;
+	private void invalidatePageSizes() {
+		layoutGeneration++;
+		currentLayout = null;
+		pageSizes = null;
+		pageSizeScanStarted = false;
+	}
+
+	/**
+	 * Return the page size if the geometry index is complete, without
+	 * locking. Returns null while the index is still being built.
+	 */
+	public PointF getCachedPageSize(int pageNum) {
+		float[] sizes = pageSizes;
+		if (sizes == null || pageNum < 0 || pageNum*2 >= sizes.length)
+			return null;
+		return new PointF(sizes[pageNum*2], sizes[pageNum*2+1]);
+	}
+
+	public PointF getPageSize(int pageNum) {
+		PointF size = getCachedPageSize(pageNum);
+		if (size != null)
+			return size;
+		return loadPageSize(pageNum);
+	}
+
+	private PointF loadPageSize(int pageNum) {
+		synchronized (docLock) {
+			if (!pageSizeScanStarted) {
+				pageSizeScanStarted = true;
+				startPageSizeScan(layoutGeneration);
+			}
+			Rect b = loadPage(pageNum).getBounds();
+			return new PointF(b.x1 - b.x0, b.y1 - b.y0);
+		}
+	}
+
+	/* Visit every page once, taking the lock per page so that rendering can
+	 * interleave, and publish the table if the layout did not change meanwhile. */
+	private void startPageSizeScan(final int generation) {
+		final int count = pageCount;
+		Thread scan = new Thread("MuPDFCore page sizes") {
+			public void run() {
+				float[] sizes = new float[count*2];
+				for (int i = 0; i < count; i++) {
+					synchronized (docLock) {
+						if (doc == null || generation != layoutGeneration)
+							return;
+						Location location = location(i);
+						Page page = doc.loadPage(location.chapter, location.page);
+						Rect b = page.getBounds();
+						page.destroy();
+						sizes[i*2] = b.x1 - b.x0;
+						sizes[i*2+1] = b.y1 - b.y0;
+					}
+				}
+				synchronized (docLock) {
+					if (generation == layoutGeneration) {
+						pageSizes = sizes;
+						if (currentLayout != null)
+							currentLayout.pageSizes = sizes;
+					}
+				}
+			}
+		};
+		scan.setDaemon(true);
+		scan.setPriority(Thread.MIN_PRIORITY);
+		scan.start();
+	}
+
+	public void onDestroy() {
+		synchronized (docLock) {
+			dropPages();
+			invalidatePageSizes();
+			dropWorkerDocuments();
+			if (doc != null)
+				doc.destroy();
+			doc = null;
+		}
 	}
 
 	/**
@@ -163,84 +1059,491 @@ public class MuPDFCore
 	 * @param patchW 页面的宽,具体渲染的页面实际大小.显示出来的大小.
 	 * @param patchH 页面的高,具体渲染的页面实际大小.显示出来的大小.
 	 */
-	public synchronized void drawPage(Bitmap bm, int pageNum,
+	public void drawPage(Bitmap bm, int pageNum,
 			int pageW, int pageH,
 			int patchX, int patchY,
 			int patchW, int patchH,
 			Cookie cookie) {
-		gotoPage(pageNum);
+		Rect bounds;
+		RenderList displayList;
+		synchronized (docLock) {
+			pageNum = clampPage(pageNum);
+			bounds = loadPage(pageNum).getBounds();
+			displayList = loadDisplayList(pageNum);
+			displayList.pin();
+		}
 
-		if (displayList == null)
-			displayList = page.toDisplayList(false);
+		try {
+			long start = Metrics.start();
+			AndroidDrawDevice dev = new AndroidDrawDevice(bm, patchX, patchY);
+			displayList.value.run(dev, pageCtm(bounds, pageW, pageH), cookie);
+			dev.close();
+			dev.destroy();
+			Metrics.time(Metrics.RENDER, pageNum, start);
+		} finally {
+			displayList.unpin();
+		}
+	}
 
+	/* Maps page points to pixels of the page drawn pageW by pageH. */
+	private Matrix pageCtm(Rect bounds, int pageW, int pageH) {
 		float zoom = resolution / 72;
 		Matrix ctm = new Matrix(zoom, zoom);
-		RectI bbox = new RectI(page.getBounds().transform(ctm));
+		RectI bbox = new RectI(bounds.transform(ctm));
 		float xscale = (float)pageW / (float)(bbox.x1-bbox.x0);
 		float yscale = (float)pageH / (float)(bbox.y1-bbox.y0);
 		ctm.scale(xscale, yscale);
+		return ctm;
+	}
+
+	/**
+	 * Bring the appearance of a page's annotations and form fields up to
+	 * date after they were edited. Returns the area that changed, in page
+	 * points, or null if nothing did. Pass it to updatePage() for each
+	 * bitmap showing the page.
+	 */
+	public RectF updatePageContents(int pageNum) {
+		synchronized (docLock) {
+			pageNum = clampPage(pageNum);
+			Page page = loadPage(pageNum);
+			if (!(page instanceof PDFPage))
+				return null;
+			PDFPage pdfPage = (PDFPage) page;
+
+			ArrayList<PDFAnnotation> annots = annotations(pdfPage);
+			boolean updated[] = new boolean[annots.size()];
+			boolean changed = false;
+			for (int i = 0; i < updated.length; i++) {
+				updated[i] = annots.get(i).update();
+				changed |= updated[i];
+			}
+			changed |= pdfPage.update();
+			Rect before[] = annotBounds.get(pageNum);
+			Rect after[] = bounds(annots);
+			annotBounds.put(pageNum, after);
+
+			// The cached list and text may show the page as it was
+			displayListCache.remove(pageNum);
+			textCache.remove(pageNum);
+
+			Rect dirty = null;
+			if (before == null) {
+				// We do not know where anything was
+				if (changed)
+					dirty = page.getBounds();
+			} else if (before.length != after.length) {
+				// Added or removed, so where they all were and are now
+				for (Rect r : before)
+					dirty = union(dirty, r);
+				for (Rect r : after)
+					dirty = union(dirty, r);
+			} else {
+				// Both where a changed one was and where it is now
+				for (int i = 0; i < after.length; i++) {
+					if (updated[i] || !same(before[i], after[i])) {
+						dirty = union(dirty, before[i]);
+						dirty = union(dirty, after[i]);
+					}
+				}
+			}
+			// Anything else that changed, we cannot place
+			if (changed && dirty == null)
+				dirty = page.getBounds();
+			if (dirty == null)
+				return null;
+			return new RectF(dirty.x0, dirty.y0, dirty.x1, dirty.y1);
+		}
+	}
+
+	/* The annotations and then the form fields of a page. */
+	private static ArrayList<PDFAnnotation> annotations(PDFPage page) {
+		ArrayList<PDFAnnotation> annots = new ArrayList<PDFAnnotation>();
+		PDFAnnotation list[] = page.getAnnotations();
+		if (list != null)
+			annots.addAll(Arrays.asList(list));
+		list = page.getWidgets();
+		if (list != null)
+			annots.addAll(Arrays.asList(list));
+		return annots;
+	}
+
+	private static Rect[] bounds(ArrayList<PDFAnnotation> annots) {
+		Rect bounds[] = new Rect[annots.size()];
+		for (int i = 0; i < bounds.length; i++)
+			bounds[i] = new Rect(annots.get(i).getBounds());
+		return bounds;
+	}
 
-		AndroidDrawDevice dev = new AndroidDrawDevice(bm, patchX, patchY);
-		displayList.run(dev, ctm, cookie);
-		dev.close();
-		dev.destroy();
+	private static Rect union(Rect dirty, Rect r) {
+		if (dirty == null)
+			return new Rect(r);
+		dirty.union(r);
+		return dirty;
 	}
 
-	public synchronized void updatePage(Bitmap bm, int pageNum,
+	private static boolean same(Rect a, Rect b) {
+		return a.x0 == b.x0 && a.y0 == b.y0 && a.x1 == b.x1 && a.y1 == b.y1;
+	}
+
+	/* Redraw the dirty area of the page, in page points as returned by
+	 * updatePageContents(), where it falls in the patch; the rest of the
+	 * bitmap is left as it was. A null dirty area redraws the whole patch.
+	 * Returns false if the area is outside the patch, and nothing was drawn. */
+	public boolean updatePage(Bitmap bm, int pageNum,
 			int pageW, int pageH,
 			int patchX, int patchY,
 			int patchW, int patchH,
-			Cookie cookie) {
-		drawPage(bm, pageNum, pageW, pageH, patchX, patchY, patchW, patchH, cookie);
-	}
+			RectF dirty, Cookie cookie) {
+		if (dirty == null) {
+			drawPage(bm, pageNum, pageW, pageH, patchX, patchY, patchW, patchH, cookie);
+			return true;
+		}
 
-	public synchronized Link[] getPageLinks(int pageNum) {
-		gotoPage(pageNum);
-		return page.getLinks();
+		Rect bounds;
+		RenderList displayList;
+		synchronized (docLock) {
+			pageNum = clampPage(pageNum);
+			bounds = loadPage(pageNum).getBounds();
+			displayList = loadDisplayList(pageNum);
+			displayList.pin();
+		}
+
+		try {
+			Matrix ctm = pageCtm(bounds, pageW, pageH);
+			Rect area = new Rect(dirty.left, dirty.top, dirty.right, dirty.bottom).transform(ctm);
+			// Round out, and clip to the patch
+			int x0 = Math.max(patchX, (int) Math.floor(area.x0));
+			int y0 = Math.max(patchY, (int) Math.floor(area.y0));
+			int x1 = Math.min(patchX + patchW, (int) Math.ceil(area.x1));
+			int y1 = Math.min(patchY + patchH, (int) Math.ceil(area.y1));
+			if (x0 >= x1 || y0 >= y1)
+				return false;
+
+			long start = Metrics.start();
+			AndroidDrawDevice dev = new AndroidDrawDevice(bm, patchX, patchY,
+					x0 - patchX, y0 - patchY, x1 - patchX, y1 - patchY);
+			displayList.value.run(dev, ctm, new Rect(x0, y0, x1, y1), cookie);
+			dev.close();
+			dev.destroy();
+			Metrics.time(Metrics.RENDER, pageNum, start);
+			return true;
+		} finally {
+			displayList.unpin();
+		}
 	}
 
-	public synchronized int resolveLink(Link link) {
-		return doc.pageNumberFromLocation(doc.resolveLink(link));
+	public Link[] getPageLinks(int pageNum) {
+		synchronized (docLock) {
+			return loadPage(pageNum).getLinks();
+		}
 	}
 
-	public synchronized Quad[] searchPage(int pageNum, String text) {
-		gotoPage(pageNum);
-		return page.search(text);
+	public int resolveLink(Link link) {
+		synchronized (docLock) {
+			return pageNumber(doc.resolveLink(link));
+		}
 	}
 
-	public synchronized boolean hasOutline() {
-		if (outline == null) {
+	/**
+	 * The structured text of a page, pinned; unpin it when done. Extracted
+	 * from the given worker document's page outside the lock if there is
+	 * one, else from our own, and cached for next time. We do not go through
+	 * the display list, so that searching many pages does not push out the
+	 * lists of the pages being read.
+	 */
+	private PageText pinText(int pageNum, Document worker) {
+		StructuredText extracted = null;
+		int generation;
+		synchronized (docLock) {
+			PageText text = textCache.get(pageNum);
+			if (text != null) {
+				Metrics.count(Metrics.TEXT_CACHE_HIT);
+				text.pin();
+				return text;
+			}
+			Metrics.count(Metrics.TEXT_CACHE_MISS);
+			generation = layoutGeneration;
+			if (worker == null) {
+				Page page = loadPage(pageNum);
+				long start = Metrics.start();
+				extracted = page.toStructuredText();
+				Metrics.time(Metrics.TEXT, pageNum, start);
+			}
+		}
+
+		if (worker != null) {
+			long start = Metrics.start();
+			Page page = worker.loadPage(pageNum);
 			try {
-				outline = doc.loadOutline();
-			} catch (Exception ex) {
-				/* ignore error */
+				extracted = page.toStructuredText();
+			} finally {
+				page.destroy();
 			}
+			Metrics.time(Metrics.TEXT, pageNum, start);
 		}
-		return outline != null;
+
+		PageText text = new PageText(extracted);
+		text.pin();
+		int kbytes = estimateTextSize(extracted);
+		synchronized (docLock) {
+			// Only keep text laid out the way the document is now
+			Integer workerGeneration = worker != null ? workerDocs.get(worker) : Integer.valueOf(generation);
+			if (doc == null || workerGeneration == null || workerGeneration != layoutGeneration) {
+				text.drop();
+			} else {
+				PageText other = textCache.get(pageNum);
+				if (other != null) {
+					// Someone else got there first, use theirs
+					text.unpin();
+					text.drop();
+					other.pin();
+					return other;
+				}
+				textCache.put(pageNum, text, kbytes);
+			}
+		}
+		return text;
 	}
 
-	private void flattenOutlineNodes(ArrayList<OutlineActivity.Item> result, Outline list[], String indent) {
-		for (Outline node : list) {
-			if (node.title != null) {
-				int page = doc.pageNumberFromLocation(doc.resolveLink(node));
-				result.add(new OutlineActivity.Item(indent + node.title, page));
+	/* Structured text is weighed by what it holds, which for reflowed and
+	 * scanned pages has little to do with their display lists. */
+	private static int estimateTextSize(StructuredText text) {
+		long bytes = 0;
+		for (StructuredText.TextBlock block : text.getBlocks()) {
+			bytes += TEXT_BLOCK_BYTES;
+			if (block.lines == null)
+				continue;
+			for (StructuredText.TextLine line : block.lines)
+				bytes += TEXT_LINE_BYTES + (long) line.chars.length * TEXT_CHAR_BYTES;
+		}
+		return (int) Math.min(Integer.MAX_VALUE, bytes / 1024);
+	}
+
+	/* The characters of a page, each line ending in a newline, from cached
+	 * text as for searchPage(). */
+	public String getPageText(int pageNum, Document worker) {
+		PageText pageText = pinText(pageNum, worker);
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (StructuredText.TextBlock block : pageText.value.getBlocks()) {
+				if (block.lines == null)
+					continue;
+				for (StructuredText.TextLine line : block.lines) {
+					for (StructuredText.TextChar ch : line.chars)
+						sb.appendCodePoint(ch.c);
+					sb.append('\n');
+				}
 			}
-			if (node.down != null)
-				flattenOutlineNodes(result, node.down, indent + "    ");
+			return sb.toString();
+		} finally {
+			pageText.unpin();
+		}
+	}
+
+	public Quad[] searchPage(int pageNum, String text) {
+		return searchPage(pageNum, text, null);
+	}
+
+	/* Search using cached text, extracting it with the worker document (as
+	 * from acquireWorkerDocument()) when it is not cached yet. */
+	public Quad[] searchPage(int pageNum, String text, Document worker) {
+		long start = Metrics.start();
+		PageText pageText = pinText(pageNum, worker);
+		try {
+			return pageText.value.search(text);
+		} finally {
+			Metrics.time(Metrics.SEARCH, pageNum, start);
+			pageText.unpin();
+		}
+	}
+
+	/* The text between two points, in page coordinates, in reading order. */
+	public String copyText(int pageNum, PointF a, PointF b) {
+		PageText pageText = pinText(pageNum, null);
+		try {
+			return pageText.value.copy(new Point(a.x, a.y), new Point(b.x, b.y));
+		} finally {
+			pageText.unpin();
+		}
+	}
+
+	/* The quads covering the text between two points, for showing a selection. */
+	public Quad[] highlightText(int pageNum, PointF a, PointF b) {
+		PageText pageText = pinText(pageNum, null);
+		try {
+			return pageText.value.highlight(new Point(a.x, a.y), new Point(b.x, b.y));
+		} finally {
+			pageText.unpin();
+		}
+	}
+
+	public boolean hasOutline() {
+		synchronized (docLock) {
+			if (outline == null)
+				loadOutline();
+			return outline != null;
+		}
+	}
+
+	/* The top level of the outline, with the rest hanging off it, or null. */
+	public Outline[] getOutline() {
+		synchronized (docLock) {
+			if (outline == null)
+				loadOutline();
+			return outline;
+		}
+	}
+
+	/* Where the outline entries start, for the current layout, or null
+	 * until it has been built in the background after the layout is done.
+	 * It is kept with the layout for when we come back to it. Never waits,
+	 * so may be called on the UI thread. */
+	public OutlineIndex getOutlineIndex() {
+		return outlineIndex;
+	}
+
+	/* The page an outline entry leads to, or -1 if it leads elsewhere. */
+	public int resolveOutlinePage(Outline node) {
+		synchronized (docLock) {
+			if (doc == null)
+				return -1;
+			return pageNumber(doc.resolveLink(node));
+		}
+	}
+
+	public boolean needsPassword() {
+		synchronized (docLock) {
+			return doc.needsPassword();
 		}
 	}
 
-	public synchronized ArrayList<OutlineActivity.Item> getOutline() {
-		ArrayList<OutlineActivity.Item> result = new ArrayList<OutlineActivity.Item>();
-		flattenOutlineNodes(result, outline, "");
-		return result;
+	public boolean authenticatePassword(String password) {
+		synchronized (docLock) {
+			boolean ok = doc.authenticatePassword(password);
+			if (ok) {
+				this.password = password;
+				startOutlineIndex();
+			}
+			return ok;
+		}
 	}
 
-	public synchronized boolean needsPassword() {
-		return doc.needsPassword();
+	/**
+	 * Another instance of the document, opened from the same source with the
+	 * same password and layout, for use on a worker thread. Hand it back with
+	 * releaseWorkerDocument(). Returns null if the document cannot be opened
+	 * again; we do not hold on to buffers just for this.
+	 */
+	public Document acquireWorkerDocument() {
+		synchronized (docLock) {
+			return acquireWorkerDocument(layoutGeneration);
+		}
 	}
 
-	public synchronized boolean authenticatePassword(String password) {
-		return doc.authenticatePassword(password);
+	/**
+	 * The same, but only for the layout of the given generation; returns
+	 * null once the document has been laid out again.
+	 */
+	public Document acquireWorkerDocument(int expected) {
+		int generation;
+		int w, h, em;
+		String password;
+		synchronized (docLock) {
+			if (doc == null || (sourcePath == null && sourceStream == null) || expected != layoutGeneration)
+				return null;
+			if (!idleDocs.isEmpty())
+				return idleDocs.remove(idleDocs.size() - 1);
+			generation = layoutGeneration;
+			w = layoutW;
+			h = layoutH;
+			em = layoutEM;
+			password = this.password;
+		}
+
+		// Opening and laying out can be slow, do it without the lock
+		Document worker = reopen(layoutKey(w, h, em), password);
+		if (worker == null)
+			return null;
+		try {
+			worker.layout(w, h, em);
+		} catch (RuntimeException x) {
+			System.out.println(x);
+			worker.destroy();
+			return null;
+		}
+
+		synchronized (docLock) {
+			if (generation != layoutGeneration) {
+				// Laid out again while we were opening it
+				worker.destroy();
+				return null;
+			}
+			workerDocs.put(worker, generation);
+		}
+		return worker;
+	}
+
+	/* Open the document again from its source, or return null. The
+	 * accelerator for the layout given is used if we have one; the caller
+	 * lays the document out. */
+	private Document reopen(String layoutKey, String password) {
+		if (sourcePath == null && sourceStream == null)
+			return null;
+		try {
+			Document other = openAccelerated(layoutKey);
+			if (other == null) {
+				if (sourcePath != null)
+					other = Document.openDocument(sourcePath);
+				else
+					other = Document.openDocument(sourceStream.duplicate(), sourceMagic);
+			}
+			if (password != null)
+				other.authenticatePassword(password);
+			return other;
+		} catch (RuntimeException x) {
+			System.out.println(x);
+			return null;
+		}
+	}
+
+	/* Open the document from its source with the accelerator for a layout,
+	 * or return null if we have none, or fitz will not take it. */
+	private Document openAccelerated(String layoutKey) {
+		File accel = accelerators != null ? accelerators.get(fingerprint, layoutKey) : null;
+		if (accel == null)
+			return null;
+		try {
+			if (sourcePath != null)
+				return Document.openDocument(sourcePath, accel.getPath());
+			return Document.openDocument(sourceStream.duplicate(), sourceMagic, MappedSeekableInputStream.open(accel));
+		} catch (IOException x) {
+			System.out.println(x);
+		} catch (RuntimeException x) {
+			System.out.println(x);
+			accelerators.remove(fingerprint, layoutKey);
+		}
+		return null;
+	}
+
+	/* Keep a worker document for next time, unless the layout has changed
+	 * since it was opened. */
+	public void releaseWorkerDocument(Document worker) {
+		synchronized (docLock) {
+			Integer generation = workerDocs.get(worker);
+			if (doc != null && generation != null && generation == layoutGeneration) {
+				idleDocs.add(worker);
+			} else {
+				workerDocs.remove(worker);
+				worker.destroy();
+			}
+		}
+	}
+
+	private void dropWorkerDocuments() {
+		for (Document worker : idleDocs) {
+			workerDocs.remove(worker);
+			worker.destroy();
+		}
+		idleDocs.clear();
 	}
 }
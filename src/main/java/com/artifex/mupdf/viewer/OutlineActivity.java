@@ -3,55 +3,89 @@ package com.artifex.mupdf.viewer;
 import android.app.ListActivity;
 import android.os.Bundle;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
-
-import java.io.Serializable;
-import java.util.ArrayList;
+import android.widget.TextView;
 
 public class OutlineActivity extends ListActivity
 {
-	public static class Item implements Serializable {
-		public String title;
-		public int page;
-		public Item(String title, int page) {
-			this.title = title;
-			this.page = page;
-		}
-		public String toString() {
-			return title;
-		}
-	}
+	protected OutlineTree tree;
+	protected BaseAdapter adapter;
+	protected int indent;
 
-	protected ArrayAdapter<Item> adapter;
+	/* The expander of each row opens or closes its entry */
+	protected final View.OnClickListener toggle = new View.OnClickListener() {
+		public void onClick(View v) {
+			tree.toggle((Integer) v.getTag());
+			adapter.notifyDataSetChanged();
+		}
+	};
 
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		requestWindowFeature(Window.FEATURE_NO_TITLE);
 		getWindow().addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
 
-		adapter = new ArrayAdapter<Item>(this, android.R.layout.simple_list_item_1);
+		// Gone if our process was restarted; the document is gone too
+		tree = OutlineTree.get();
+		if (tree == null) {
+			finish();
+			return;
+		}
+
+		// Each level sits one expander further in
+		indent = (int) (48 * getResources().getDisplayMetrics().density);
+
+		// Rows are only made as the list is scrolled to them
+		adapter = new BaseAdapter() {
+			public int getCount() {
+				return tree.size();
+			}
+
+			public Object getItem(int position) {
+				return tree.get(position);
+			}
+
+			public long getItemId(int position) {
+				return position;
+			}
+
+			public View getView(int position, View convertView, ViewGroup parent) {
+				View view = convertView;
+				if (view == null)
+					view = getLayoutInflater().inflate(R.layout.outline_entry, parent, false);
+				OutlineTree.Node node = tree.get(position);
+				view.setPadding(node.depth * indent, 0, 0, 0);
+				TextView expander = (TextView) view.findViewById(R.id.outlineExpander);
+				if (node.hasChildren()) {
+					expander.setText(node.isExpanded() ? "\u25be" : "\u25b8");
+					expander.setTag(position);
+					expander.setOnClickListener(toggle);
+					expander.setVisibility(View.VISIBLE);
+				} else {
+					expander.setOnClickListener(null);
+					expander.setVisibility(View.INVISIBLE);
+				}
+				((TextView) view.findViewById(R.id.outlineTitle)).setText(node.title);
+				return view;
+			}
+		};
 		setListAdapter(adapter);
 
-		Bundle bundle = getIntent().getExtras();
-		int currentPage = bundle.getInt("POSITION");
-		ArrayList<Item> outline = (ArrayList<Item>)bundle.getSerializable("OUTLINE");
-		int found = -1;
-		for (int i = 0; i < outline.size(); ++i) {
-			Item item = outline.get(i);
-			if (found < 0 && item.page >= currentPage)
-				found = i;
-			adapter.add(item);
-		}
+		int currentPage = getIntent().getIntExtra("POSITION", 0);
+		int found = tree.findPage(currentPage);
 		if (found >= 0)
 			setSelection(found);
 	}
 
+	/* Go to the entry's page, if it is in the document. */
 	protected void onListItemClick(ListView l, View v, int position, long id) {
-		Item item = adapter.getItem(position);
-		setResult(RESULT_FIRST_USER + item.page);
+		int page = tree.getPage(tree.get(position));
+		if (page >= 0)
+			setResult(RESULT_FIRST_USER + page);
 		finish();
 	}
 }
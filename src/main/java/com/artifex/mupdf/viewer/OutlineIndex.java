@@ -0,0 +1,77 @@
+package com.artifex.mupdf.viewer;
+
+import com.artifex.mupdf.fitz.Outline;
+
+import java.util.IdentityHashMap;
+
+/* The pages the outline entries start on, in page order, for finding
+ * which chapter a page is in and where the chapters either side of it
+ * start without walking the outline. Entries leading out of the document
+ * are left out; entries starting on the same page keep their outline
+ * order, so the innermost one counts as the chapter. It also knows the
+ * page of each entry of the outline it was made from, so that OutlineTree
+ * need not resolve them. Made by MuPDFCore once per layout, and never
+ * changed, so it may be used from any thread. */
+public class OutlineIndex {
+	private final int pages[];
+	private final String titles[];
+	private final IdentityHashMap<Outline, Integer> entryPages;
+
+	OutlineIndex(int pages[], String titles[], IdentityHashMap<Outline, Integer> entryPages) {
+		this.pages = pages;
+		this.titles = titles;
+		this.entryPages = entryPages;
+	}
+
+	public int size() {
+		return pages.length;
+	}
+
+	public int getPage(int entry) {
+		return pages[entry];
+	}
+
+	public String getTitle(int entry) {
+		return titles[entry];
+	}
+
+	/* The page an outline entry leads to, -1 if it leads out of the
+	 * document, or null if the entry is not one of ours. */
+	public Integer getPage(Outline node) {
+		return entryPages.get(node);
+	}
+
+	/* The entry whose chapter the page is in: the last one starting at or
+	 * before it, or -1 if the page comes before them all. */
+	public int find(int page) {
+		int lo = 0;
+		int hi = pages.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (pages[mid] <= page)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo - 1;
+	}
+
+	/* The title of the chapter the page is in, or null. */
+	public String getChapterTitle(int page) {
+		int entry = find(page);
+		return entry >= 0 ? titles[entry] : null;
+	}
+
+	/* Where the first chapter after the page starts, or -1. */
+	public int nextChapterPage(int page) {
+		int entry = find(page) + 1;
+		return entry < pages.length ? pages[entry] : -1;
+	}
+
+	/* Where the last chapter before the page starts, or -1; from a page
+	 * inside a chapter, that is the start of the chapter itself. */
+	public int previousChapterPage(int page) {
+		int entry = find(page - 1);
+		return entry >= 0 ? pages[entry] : -1;
+	}
+}
@@ -0,0 +1,150 @@
+package com.artifex.mupdf.viewer;
+
+import com.artifex.mupdf.fitz.Outline;
+
+import java.util.ArrayList;
+
+/* The document outline as a list of rows, expanded one level at a time as
+ * the user opens entries, with each entry's page only worked out when it
+ * is asked for, from the core's outline index once it is built. Handed to OutlineActivity in-process through set() and
+ * get(), rather than serialised into its intent. */
+public class OutlineTree {
+	private static final int UNRESOLVED = -2;
+
+	public static class Node {
+		public final String title;
+		public final int depth;
+		private final Outline outline;
+		private int page = UNRESOLVED;
+		private boolean expanded;
+
+		Node(Outline outline, int depth) {
+			this.title = outline.title;
+			this.depth = depth;
+			this.outline = outline;
+		}
+
+		public boolean hasChildren() {
+			return outline.down != null && outline.down.length > 0;
+		}
+
+		public boolean isExpanded() {
+			return expanded;
+		}
+
+		public String toString() {
+			return title;
+		}
+	}
+
+	private final MuPDFCore mCore;
+	private final ArrayList<Node> mRows = new ArrayList<Node>();
+	static private OutlineTree singleton;
+
+	public OutlineTree(MuPDFCore core, Outline roots[]) {
+		mCore = core;
+		addLevel(mRows, roots, 0);
+	}
+
+	static public OutlineTree get() {
+		return singleton;
+	}
+
+	static public void set(OutlineTree tree) {
+		singleton = tree;
+	}
+
+	/* Entries without a title stand aside for their children. */
+	private static void addLevel(ArrayList<Node> rows, Outline list[], int depth) {
+		if (list == null)
+			return;
+		for (Outline node : list) {
+			if (node.title != null)
+				rows.add(new Node(node, depth));
+			else
+				addLevel(rows, node.down, depth + 1);
+		}
+	}
+
+	public int size() {
+		return mRows.size();
+	}
+
+	public Node get(int row) {
+		return mRows.get(row);
+	}
+
+	/* The page the entry leads to, or -1 if it leads out of the document.
+	 * Without the outline index this takes the core's lock. */
+	public int getPage(Node node) {
+		int page = knownPage(node);
+		if (page == UNRESOLVED)
+			page = node.page = mCore.resolveOutlinePage(node.outline);
+		return page;
+	}
+
+	/* The page of the entry if we have it without resolving it, or
+	 * UNRESOLVED. */
+	private int knownPage(Node node) {
+		if (node.page == UNRESOLVED) {
+			OutlineIndex index = mCore.getOutlineIndex();
+			Integer page = index != null ? index.getPage(node.outline) : null;
+			if (page != null)
+				node.page = page;
+		}
+		return node.page;
+	}
+
+	/* Show or hide the children of the entry in the given row. */
+	public void toggle(int row) {
+		Node node = mRows.get(row);
+		if (!node.hasChildren())
+			return;
+		if (node.expanded) {
+			int end = row + 1;
+			while (end < mRows.size() && mRows.get(end).depth > node.depth)
+				end++;
+			mRows.subList(row + 1, end).clear();
+		} else {
+			ArrayList<Node> children = new ArrayList<Node>();
+			addLevel(children, node.outline.down, node.depth + 1);
+			mRows.addAll(row + 1, children);
+		}
+		node.expanded = !node.expanded;
+	}
+
+	/* The row of the chapter the page is in, or of the closed entry holding
+	 * that chapter, or -1 if the page comes before them all. Rows are taken
+	 * to be in page order, as outlines nearly always are. Nothing is
+	 * resolved here, since we are called on the UI thread: until the core's
+	 * outline index is built, only rows already resolved are looked at.
+	 * Rows leading out of the document are passed over. */
+	public int findPage(int page) {
+		OutlineIndex index = mCore.getOutlineIndex();
+		if (index != null) {
+			int entry = index.find(page);
+			if (entry < 0)
+				return -1;
+			page = index.getPage(entry);
+		}
+		int lo = 0;
+		int hi = mRows.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			// The first row from the middle whose page we know
+			int row = mid;
+			while (row < hi && knownPage(mRows.get(row)) < 0)
+				row++;
+			if (row == hi)
+				hi = mid;
+			else if (knownPage(mRows.get(row)) <= page)
+				lo = row + 1;
+			else
+				hi = mid;
+		}
+		int row = lo - 1;
+		while (row >= 0 && knownPage(mRows.get(row)) < 0)
+			row--;
+		return row;
+	}
+}
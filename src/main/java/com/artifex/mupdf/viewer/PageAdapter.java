@@ -15,10 +15,17 @@ public class PageAdapter extends BaseAdapter {
 	private final MuPDFCore mCore;
 	private final SparseArray<PointF> mPageSizes = new SparseArray<PointF>();
 	private       Bitmap mSharedHqBm;
+	private       TileCache mTileCache;
+	private       boolean mSharedTiles; // Kept by someone else, who clears it
+	private       ThumbnailCache mThumbnails;
+	private       boolean mProgressive;
+	private final PagePrefetcher mPrefetcher;
+	private       Point mParentSize;
 
 	public PageAdapter(Context c, MuPDFCore core) {
 		mContext = c;
 		mCore = core;
+		mPrefetcher = new PagePrefetcher(core, Runtime.getRuntime().maxMemory() / 16);
 	}
 
 	public int getCount() {
@@ -33,34 +40,91 @@ public class PageAdapter extends BaseAdapter {
 		return 0;
 	}
 
+	// Render zoomed pages in tiles kept in a cache shared by all page views,
+	// rather than in one screen sized patch. Set before any view is created.
+	public void setTiledHq(boolean tiled) {
+		if (tiled && mTileCache == null) {
+			mTileCache = new TileCache((int) (Runtime.getRuntime().maxMemory() / 1024 / 8));
+			mSharedTiles = false;
+		} else if (!tiled && mTileCache != null) {
+			if (!mSharedTiles)
+				mTileCache.clear();
+			mTileCache = null;
+		}
+	}
+
+	// Render zoomed pages in tiles kept in the given cache, which outlives
+	// this adapter. Set before any view is created.
+	public void setTileCache(TileCache tiles) {
+		setTiledHq(false);
+		mTileCache = tiles;
+		mSharedTiles = tiles != null;
+	}
+
+	// Show thumbnails kept on disk while pages render, and keep new ones.
+	// Set before any view is created.
+	public void setThumbnailCache(ThumbnailCache thumbnails) {
+		mThumbnails = thumbnails;
+	}
+
+	// Show a quick low resolution render of each page before the full one.
+	public void setProgressive(boolean progressive) {
+		mProgressive = progressive;
+	}
+
 	public void releaseBitmaps()
 	{
-		//  recycle and release the shared bitmap.
-		if (mSharedHqBm!=null)
-			mSharedHqBm.recycle();
+		//  hand the shared bitmap back for reuse.
+		BitmapPool.get().release(mSharedHqBm);
 		mSharedHqBm = null;
+
+		if (mTileCache != null && !mSharedTiles)
+			mTileCache.clear();
+
+		mPrefetcher.clear();
 	}
 
 	public void refresh() {
 		mPageSizes.clear();
+		if (mTileCache != null)
+			mTileCache.clear();
+		mPrefetcher.clear();
+	}
+
+	// Render up to count pages past the neighbour of the current page, in
+	// the direction (+1 or -1) the user is moving.
+	public void prefetch(int current, int direction, int count) {
+		if (mParentSize != null)
+			mPrefetcher.prefetch(current, direction, count, mParentSize);
 	}
 
 	public View getView(final int position, View convertView, ViewGroup parent) {
 		final PageView pageView;
+		mParentSize = new Point(parent.getWidth(), parent.getHeight());
 		if (convertView == null) {
-			if (mSharedHqBm == null || mSharedHqBm.getWidth() != parent.getWidth() || mSharedHqBm.getHeight() != parent.getHeight())
-				mSharedHqBm = Bitmap.createBitmap(parent.getWidth(), parent.getHeight(), Bitmap.Config.ARGB_8888);
+			if (mTileCache == null && (mSharedHqBm == null || mSharedHqBm.getWidth() != parent.getWidth() || mSharedHqBm.getHeight() != parent.getHeight())) {
+				BitmapPool.get().release(mSharedHqBm);
+				mSharedHqBm = BitmapPool.get().acquire(parent.getWidth(), parent.getHeight(), Bitmap.Config.ARGB_8888);
+			}
 
 			pageView = new PageView(mContext, mCore, new Point(parent.getWidth(), parent.getHeight()), mSharedHqBm);
+			pageView.setTileCache(mTileCache);
+			pageView.setThumbnailCache(mThumbnails);
+			pageView.setProgressive(mProgressive);
 		} else {
 			pageView = (PageView) convertView;
 		}
 
 		PointF pageSize = mPageSizes.get(position);
+		if (pageSize == null) {
+			pageSize = mCore.getCachedPageSize(position);
+			if (pageSize != null)
+				mPageSizes.put(position, pageSize);
+		}
 		if (pageSize != null) {
 			// We already know the page size. Set it up
 			// immediately
-			pageView.setPage(position, pageSize);
+			pageView.setPage(position, pageSize, mPrefetcher.take(position, pageSize));
 		} else {
 			// Page size as yet unknown. Blank it for now, and
 			// start a background task to find the size
@@ -79,11 +143,11 @@ public class PageAdapter extends BaseAdapter {
 					// Check that this view hasn't been reused for
 					// another page since we started
 					if (pageView.getPage() == position)
-						pageView.setPage(position, result);
+						pageView.setPage(position, result, mPrefetcher.take(position, result));
 				}
 			};
 
-			sizingTask.execute((Void)null);
+			sizingTask.executeOnExecutor(RenderScheduler.get().executor(RenderScheduler.TASK_SIZING, position), (Void)null);
 		}
 		return pageView;
 	}
@@ -0,0 +1,153 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.PointF;
+import android.util.SparseArray;
+
+import com.artifex.mupdf.fitz.Cookie;
+
+/* Renders pages ahead of the reading direction at minimum zoom, so that a
+ * fast fling finds them ready instead of blank. The bitmaps are the same
+ * size as a page view's own and are handed over to it when the page comes
+ * into view. How far ahead we go depends on how hard the user flings,
+ * limited by a memory budget. */
+public class PagePrefetcher {
+	private static final int MAX_PAGES = 6;
+
+	private final MuPDFCore mCore;
+	private final long mBudget;
+	private final SparseArray<Prefetched> mPages = new SparseArray<Prefetched>();
+	private final SparseArray<CancellableAsyncTask<Void,Prefetched>> mTasks =
+			new SparseArray<CancellableAsyncTask<Void,Prefetched>>();
+	private int mDirection;
+
+	private static class Prefetched {
+		final Bitmap bm;
+		final PointF pageSize;
+
+		Prefetched(Bitmap bm, PointF pageSize) {
+			this.bm = bm;
+			this.pageSize = pageSize;
+		}
+	}
+
+	public PagePrefetcher(MuPDFCore core, long budget) {
+		mCore = core;
+		mBudget = budget;
+	}
+
+	/* Start rendering up to count pages beyond the neighbour of the current
+	 * page, in the given direction (+1 or -1). */
+	public void prefetch(int current, int direction, int count, Point parentSize) {
+		if (direction != mDirection) {
+			// Changed our mind; whatever is on its way is now behind us
+			cancel();
+			mDirection = direction;
+		}
+
+		long pageBytes = (long) parentSize.x * parentSize.y * 4;
+		count = (int) Math.min(Math.min(count, MAX_PAGES), mBudget / pageBytes);
+		if (count <= 0) {
+			clear();
+			return;
+		}
+
+		// Keep only what is still ahead of us
+		int first = current + 2 * direction;
+		int last = current + (count + 1) * direction;
+		for (int i = mPages.size() - 1; i >= 0; i--) {
+			int page = mPages.keyAt(i);
+			if (!between(page, first, last)) {
+				BitmapPool.get().release(mPages.valueAt(i).bm);
+				mPages.removeAt(i);
+			}
+		}
+		for (int i = mTasks.size() - 1; i >= 0; i--) {
+			if (!between(mTasks.keyAt(i), first, last)) {
+				mTasks.valueAt(i).cancel();
+				mTasks.removeAt(i);
+			}
+		}
+
+		for (int n = 0; n < count; n++) {
+			int page = first + n * direction;
+			if (page < 0 || page >= mCore.countPages())
+				break;
+			if (mPages.get(page) == null && mTasks.get(page) == null)
+				render(page, parentSize);
+		}
+	}
+
+	private static boolean between(int page, int a, int b) {
+		return page >= Math.min(a, b) && page <= Math.max(a, b);
+	}
+
+	private void render(final int page, final Point parentSize) {
+		final Bitmap bm = BitmapPool.get().acquire(parentSize.x, parentSize.y, Bitmap.Config.ARGB_8888);
+		// Not to be handed out again while a cancelled render may still draw
+		BitmapPool.get().hold(bm);
+		CancellableAsyncTask<Void,Prefetched> task = new CancellableAsyncTask<Void,Prefetched>(
+				new MuPDFCancellableTaskDefinition<Void,Prefetched>() {
+					@Override
+					public Prefetched doInBackground(Cookie cookie, Void ... params) {
+						// Same sizing as PageView.setPage
+						PointF size = mCore.getPageSize(page);
+						float scale = Math.min(parentSize.x/size.x, parentSize.y/size.y);
+						int w = (int)(size.x*scale);
+						int h = (int)(size.y*scale);
+						synchronized (bm) {
+							mCore.drawPage(bm, page, w, h, 0, 0, w, h, cookie);
+						}
+						return new Prefetched(bm, size);
+					}
+
+					@Override
+					public void doCleanup() {
+						super.doCleanup();
+						BitmapPool.get().unhold(bm);
+					}
+				}) {
+			@Override
+			public void onPostExecute(Prefetched result) {
+				mTasks.remove(page);
+				mPages.put(page, result);
+			}
+
+			@Override
+			public void onCancelled() {
+				BitmapPool.get().release(bm);
+			}
+		};
+		mTasks.put(page, task);
+		task.setPriority(RenderScheduler.TASK_PAGE, page);
+		task.execute();
+	}
+
+	/* Hand over the render of a page, if we have one for a page of this size.
+	 * The caller then owns the bitmap. */
+	public Bitmap take(int page, PointF pageSize) {
+		Prefetched p = mPages.get(page);
+		if (p == null)
+			return null;
+		mPages.remove(page);
+		if (p.pageSize.x != pageSize.x || p.pageSize.y != pageSize.y) {
+			BitmapPool.get().release(p.bm);
+			return null;
+		}
+		return p.bm;
+	}
+
+	public void cancel() {
+		for (int i = 0; i < mTasks.size(); i++)
+			mTasks.valueAt(i).cancel();
+		mTasks.clear();
+	}
+
+	public void clear() {
+		cancel();
+		for (int i = 0; i < mPages.size(); i++)
+			BitmapPool.get().release(mPages.valueAt(i).bm);
+		mPages.clear();
+	}
+}
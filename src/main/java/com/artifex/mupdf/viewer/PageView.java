@@ -6,6 +6,7 @@ import com.artifex.mupdf.fitz.Link;
 import com.artifex.mupdf.fitz.Quad;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 
 import android.annotation.TargetApi;
@@ -23,6 +24,7 @@ import android.graphics.Path;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
@@ -58,6 +60,7 @@ public class PageView extends ViewGroup {
 	private static final int BOX_COLOR = 0xFF4444FF;
 	private static final int BACKGROUND_COLOR = 0xFFFFFFFF;
 	private static final int PROGRESS_DIALOG_DELAY = 200;
+	private static final int PREVIEW_SCALE = 4;
 
 	protected final Context mContext;
 
@@ -71,12 +74,25 @@ public class PageView extends ViewGroup {
 	private       Matrix    mEntireMat;
 	private       AsyncTask<Void,Void,Link[]> mGetLinkInfo;
 	private       CancellableAsyncTask<Void, Void> mDrawEntire;
+	private       ThumbnailCache mThumbnails;
+	private       AsyncTask<Void,Void,Bitmap> mLoadThumbnail;
+	private       Bitmap    mPreviewBm; // Shown until mEntireBm is rendered
+	private       boolean   mProgressive;
+	private       boolean   mEntireRendered;
+	private       RectF     mEntireDirty; // Edited areas, in page points, still to redraw
+	private       RectF     mHqDirty;
+	private       AsyncTask<Void,Void,RectF> mUpdateContents;
+	private       boolean   mUpdateAgain;
 
 	private       Point     mPatchViewSize; // View size on the basis of which the patch was created
 	private       Rect      mPatchArea;
 	private       ImageView mPatch;
 	private       Bitmap    mPatchBm;
 	private       CancellableAsyncTask<Void,Void> mDrawPatch;
+	private       TileCache mTileCache; // When set, HQ is rendered in tiles instead of one patch
+	private       View      mTileView;
+	private final HashMap<TileCache.Key, CancellableAsyncTask<Void,Void>> mDrawTiles =
+			new HashMap<TileCache.Key, CancellableAsyncTask<Void,Void>>();
 	private       Quad      mSearchBoxes[];
 	protected     Link      mLinks[];
 	private       View      mSearchView;
@@ -92,8 +108,11 @@ public class PageView extends ViewGroup {
 		mCore = core;
 		mParentSize = parentSize;
 		setBackgroundColor(BACKGROUND_COLOR);
-		mEntireBm = Bitmap.createBitmap(parentSize.x, parentSize.y, Config.ARGB_8888);
+		mEntireBm = BitmapPool.get().acquire(parentSize.x, parentSize.y, Config.ARGB_8888);
 		mPatchBm = sharedHqBm;
+		// Shared with other views; the adapter's release waits for ours
+		if (mPatchBm != null)
+			BitmapPool.get().hold(mPatchBm);
 		mEntireMat = new Matrix();
 	}
 
@@ -104,16 +123,29 @@ public class PageView extends ViewGroup {
 			mDrawEntire = null;
 		}
 
+		cancelPreview();
+
 		if (mDrawPatch != null) {
 			mDrawPatch.cancel();
 			mDrawPatch = null;
 		}
 
+		if (mUpdateContents != null) {
+			mUpdateContents.cancel(true);
+			mUpdateContents = null;
+		}
+		mUpdateAgain = false;
+		mEntireRendered = false;
+		mEntireDirty = null;
+		mHqDirty = null;
+
 		if (mGetLinkInfo != null) {
 			mGetLinkInfo.cancel(true);
 			mGetLinkInfo = null;
 		}
 
+		cancelTiles();
+
 		mIsBlank = true;
 		mPageNumber = 0;
 
@@ -130,6 +162,9 @@ public class PageView extends ViewGroup {
 			mPatch.invalidate();
 		}
 
+		if (mTileView != null)
+			mTileView.invalidate();
+
 		mPatchViewSize = null;
 		mPatchArea = null;
 
@@ -149,14 +184,18 @@ public class PageView extends ViewGroup {
 	public void releaseBitmaps() {
 		reinit();
 
-		// recycle bitmaps before releasing them.
+		// hand our bitmap back for reuse. The HQ patch bitmap is shared,
+		// and given back by the adapter.
 
-		if (mEntireBm!=null)
-			mEntireBm.recycle();
+		if (mEntire != null)
+			mEntire.setImageBitmap(null);
+		BitmapPool.get().release(mEntireBm);
 		mEntireBm = null;
 
-		if (mPatchBm!=null)
-			mPatchBm.recycle();
+		if (mPatch != null)
+			mPatch.setImageBitmap(null);
+		if (mPatchBm != null)
+			BitmapPool.get().unhold(mPatchBm);
 		mPatchBm = null;
 	}
 
@@ -174,12 +213,20 @@ public class PageView extends ViewGroup {
 	}
 
 	public void setPage(int page, PointF size) {
+		setPage(page, size, null);
+	}
+
+	/* prefetched, if not null, is this page already rendered at minimum zoom
+	 * into a bitmap like our own, which we then take over. */
+	public void setPage(int page, PointF size, Bitmap prefetched) {
 		// Cancel pending render task
 		if (mDrawEntire != null) {
 			mDrawEntire.cancel();
 			mDrawEntire = null;
 		}
 
+		cancelPreview();
+
 		mIsBlank = false;
 		// Highlights may be missing because mIsBlank was true on last draw
 		if (mSearchView != null)
@@ -214,43 +261,22 @@ public class PageView extends ViewGroup {
 			}
 		};
 
-		mGetLinkInfo.execute();
-
-		// Render the page in the background
-		mDrawEntire = new CancellableAsyncTask<Void, Void>(getDrawPageTask(mEntireBm, mSize.x, mSize.y, 0, 0, mSize.x, mSize.y)) {
-
-			@Override
-			public void onPreExecute() {
-				setBackgroundColor(BACKGROUND_COLOR);
-				mEntire.setImageBitmap(null);
-				mEntire.invalidate();
+		mGetLinkInfo.executeOnExecutor(RenderScheduler.get().executor(RenderScheduler.TASK_LINKS, mPageNumber));
 
-				if (mBusyIndicator == null) {
-					mBusyIndicator = new ProgressBar(mContext);
-					mBusyIndicator.setIndeterminate(true);
-					addView(mBusyIndicator);
-					mBusyIndicator.setVisibility(INVISIBLE);
-					mHandler.postDelayed(new Runnable() {
-						public void run() {
-							if (mBusyIndicator != null)
-								mBusyIndicator.setVisibility(VISIBLE);
-						}
-					}, PROGRESS_DIALOG_DELAY);
-				}
-			}
-
-			@Override
-			public void onPostExecute(Void result) {
+		if (prefetched != null) {
+			BitmapPool.get().release(mEntireBm);
+			mEntireBm = prefetched;
+			if (mBusyIndicator != null) {
 				removeView(mBusyIndicator);
 				mBusyIndicator = null;
-				mEntire.setImageBitmap(mEntireBm);
-				mEntire.invalidate();
-				setBackgroundColor(Color.TRANSPARENT);
-
 			}
-		};
-
-		mDrawEntire.execute();
+			mEntire.setImageBitmap(mEntireBm);
+			mEntire.invalidate();
+			setBackgroundColor(Color.TRANSPARENT);
+			mEntireRendered = true;
+		} else {
+			renderEntire();
+		}
 
 		if (mSearchView == null) {
 			mSearchView = new View(mContext) {
@@ -290,6 +316,192 @@ public class PageView extends ViewGroup {
 		requestLayout();
 	}
 
+	private void renderEntire() {
+		// Queued first so the cheap disk read gets in ahead of the render
+		if (mThumbnails != null)
+			loadThumbnail();
+
+		// Render the page in the background
+		mDrawEntire = new CancellableAsyncTask<Void, Void>(getDrawEntireTask()) {
+
+			@Override
+			public void onPreExecute() {
+				setBackgroundColor(BACKGROUND_COLOR);
+				mEntire.setImageBitmap(null);
+				mEntire.invalidate();
+
+				if (mBusyIndicator == null) {
+					mBusyIndicator = new ProgressBar(mContext);
+					mBusyIndicator.setIndeterminate(true);
+					addView(mBusyIndicator);
+					mBusyIndicator.setVisibility(INVISIBLE);
+					mHandler.postDelayed(new Runnable() {
+						public void run() {
+							if (mBusyIndicator != null)
+								mBusyIndicator.setVisibility(VISIBLE);
+						}
+					}, PROGRESS_DIALOG_DELAY);
+				}
+			}
+
+			@Override
+			public void onPostExecute(Void result) {
+				removeView(mBusyIndicator);
+				mBusyIndicator = null;
+				mEntire.setImageBitmap(mEntireBm);
+				mEntire.invalidate();
+				setBackgroundColor(Color.TRANSPARENT);
+				cancelPreview();
+				mEntireRendered = true;
+			}
+		};
+
+		mDrawEntire.setPriority(RenderScheduler.TASK_PAGE, mPageNumber);
+		mDrawEntire.execute();
+	}
+
+	/* Render the page at minimum zoom, and keep a thumbnail of it on disk if
+	 * we have not got one yet. In progressive mode, and with no thumbnail to
+	 * show meanwhile, first render a quick pass at a fraction of the size.
+	 * Both passes share the task's cookie, so cancelling stops either. */
+	private CancellableTaskDefinition<Void, Void> getDrawEntireTask() {
+		final ThumbnailCache thumbnails = mThumbnails;
+		final boolean progressive = mProgressive;
+		final Bitmap bm = mEntireBm;
+		final int page = mPageNumber;
+		final Point size = mSize;
+		final Point parentSize = mParentSize;
+		return new RenderTaskDefinition(bm) {
+			private volatile boolean cancelled;
+
+			@Override
+			public Void doInBackground(Cookie cookie, Void ... params) {
+				boolean haveThumbnail = thumbnails != null && thumbnails.has(page, size);
+				if (progressive && !haveThumbnail)
+					renderPreview(cookie);
+				if (cancelled)
+					return null;
+
+				renderInto(bm, page, size.x, size.y, 0, 0, size.x, size.y, null, cookie);
+				if (!cancelled && thumbnails != null && !haveThumbnail) {
+					synchronized (bm) {
+						thumbnails.store(page, size, bm);
+					}
+				}
+				return null;
+			}
+
+			private void renderPreview(Cookie cookie) {
+				int w = Math.max(1, size.x / PREVIEW_SCALE);
+				int h = Math.max(1, size.y / PREVIEW_SCALE);
+				Bitmap small = BitmapPool.get().acquire(w, h, Config.ARGB_8888);
+				mCore.drawPage(small, page, w, h, 0, 0, w, h, cookie);
+				if (cancelled) {
+					BitmapPool.get().release(small);
+					return;
+				}
+				final Bitmap preview = scaleUp(small, size, parentSize);
+				BitmapPool.get().release(small);
+				mHandler.post(new Runnable() {
+					public void run() {
+						// Cancelling happens on this thread too, so this is reliable
+						if (cancelled)
+							BitmapPool.get().release(preview);
+						else
+							showPreview(preview);
+					}
+				});
+			}
+
+			@Override
+			public void doCancel() {
+				cancelled = true;
+				super.doCancel();
+			}
+		};
+	}
+
+	/* A bitmap like mEntireBm holding a small render of the page stretched
+	 * to its size at minimum zoom. */
+	private static Bitmap scaleUp(Bitmap small, Point size, Point parentSize) {
+		Bitmap bm = BitmapPool.get().acquire(parentSize.x, parentSize.y, Config.ARGB_8888);
+		Canvas canvas = new Canvas(bm);
+		canvas.drawBitmap(small, null, new Rect(0, 0, size.x, size.y), new Paint(Paint.FILTER_BITMAP_FLAG));
+		return bm;
+	}
+
+	/* Show a stand-in for the page until mEntireBm is rendered. */
+	private void showPreview(Bitmap bm) {
+		if (mPreviewBm != null)
+			BitmapPool.get().release(mPreviewBm);
+		mPreviewBm = bm;
+		if (mBusyIndicator != null) {
+			removeView(mBusyIndicator);
+			mBusyIndicator = null;
+		}
+		mEntire.setImageBitmap(mPreviewBm);
+		mEntire.invalidate();
+		setBackgroundColor(Color.TRANSPARENT);
+	}
+
+	/* Show the page's thumbnail from disk, scaled up, while the real render
+	 * is still on its way. */
+	private void loadThumbnail() {
+		final ThumbnailCache thumbnails = mThumbnails;
+		final int page = mPageNumber;
+		final Point size = mSize;
+		final Point parentSize = mParentSize;
+		mLoadThumbnail = new AsyncTask<Void,Void,Bitmap>() {
+			protected Bitmap doInBackground(Void... v) {
+				Bitmap thumb = thumbnails.load(page, size);
+				if (thumb == null)
+					return null;
+				Bitmap bm = scaleUp(thumb, size, parentSize);
+				BitmapPool.get().release(thumb);
+				return bm;
+			}
+
+			protected void onPostExecute(Bitmap bm) {
+				mLoadThumbnail = null;
+				// The render has not finished, or we would have been cancelled
+				if (bm != null)
+					showPreview(bm);
+			}
+
+			protected void onCancelled(Bitmap bm) {
+				BitmapPool.get().release(bm);
+			}
+		};
+
+		mLoadThumbnail.executeOnExecutor(RenderScheduler.get().executor(RenderScheduler.TASK_PAGE, page));
+	}
+
+	private void cancelPreview() {
+		if (mLoadThumbnail != null) {
+			mLoadThumbnail.cancel(true);
+			mLoadThumbnail = null;
+		}
+
+		// Callers take the preview off screen themselves
+		if (mPreviewBm != null) {
+			BitmapPool.get().release(mPreviewBm);
+			mPreviewBm = null;
+		}
+	}
+
+	/* Show a quick low resolution render before the full one. */
+	public void setProgressive(boolean progressive) {
+		mProgressive = progressive;
+	}
+
+	public void setThumbnailCache(ThumbnailCache thumbnails) {
+		mThumbnails = thumbnails;
+	}
+
+	public void setTileCache(TileCache tileCache) {
+		mTileCache = tileCache;
+	}
+
 	public void setSearchBoxes(Quad searchBoxes[]) {
 		mSearchBoxes = searchBoxes;
 		if (mSearchView != null)
@@ -342,6 +554,12 @@ public class PageView extends ViewGroup {
 			mEntire.layout(0, 0, w, h);
 		}
 
+		if (mTileView != null) {
+			// Only the tiles on screen are drawn, and that changes as we move
+			mTileView.layout(0, 0, w, h);
+			mTileView.invalidate();
+		}
+
 		if (mSearchView != null) {
 			mSearchView.layout(0, 0, w, h);
 		}
@@ -369,6 +587,11 @@ public class PageView extends ViewGroup {
 	}
 
 	public void updateHq(boolean update) {
+		if (mTileCache != null) {
+			updateTiles(update);
+			return;
+		}
+
 		Rect viewArea = new Rect(getLeft(),getTop(),getRight(),getBottom());
 		if (viewArea.width() == mSize.x || viewArea.height() == mSize.y) {
 			// If the viewArea's size matches the unzoomed size, there is no need for an hq patch
@@ -411,6 +634,8 @@ public class PageView extends ViewGroup {
 
 			CancellableTaskDefinition<Void, Void> task;
 
+			final RectF dirty = completeRedraw ? null : mHqDirty;
+
 			if (completeRedraw)
 				task = getDrawPageTask(mPatchBm, patchViewSize.x, patchViewSize.y,
 								patchArea.left, patchArea.top,
@@ -418,15 +643,22 @@ public class PageView extends ViewGroup {
 			else
 				task = getUpdatePageTask(mPatchBm, patchViewSize.x, patchViewSize.y,
 						patchArea.left, patchArea.top,
-						patchArea.width(), patchArea.height());
+						patchArea.width(), patchArea.height(), dirty);
 
 			mDrawPatch = new CancellableAsyncTask<Void,Void>(task) {
 
 				public void onPostExecute(Void result) {
 					mPatchViewSize = patchViewSize;
 					mPatchArea = patchArea;
+					mHqDirty = null;
 					mPatch.setImageBitmap(mPatchBm);
-					mPatch.invalidate();
+					if (dirty != null) {
+						Rect area = viewArea(dirty);
+						area.offset(-patchArea.left, -patchArea.top);
+						mPatch.invalidate(area);
+					} else {
+						mPatch.invalidate();
+					}
 					//requestLayout();
 					// Calling requestLayout here doesn't lead to a later call to layout. No idea
 					// why, but apparently others have run into the problem.
@@ -434,37 +666,102 @@ public class PageView extends ViewGroup {
 				}
 			};
 
+			mDrawPatch.setPriority(RenderScheduler.TASK_HQ, mPageNumber);
 			mDrawPatch.execute();
 		}
 	}
 
+	/* Call once the page's annotations or form fields have been edited.
+	 * Only the area that changed is redrawn. */
 	public void update() {
-		// Cancel pending render task
+		if (mUpdateContents != null) {
+			// Pick these changes up too once the current check is done
+			mUpdateAgain = true;
+			return;
+		}
+
+		final int page = mPageNumber;
+		mUpdateContents = new AsyncTask<Void,Void,RectF>() {
+			protected RectF doInBackground(Void... v) {
+				return mCore.updatePageContents(page);
+			}
+
+			protected void onPostExecute(RectF dirty) {
+				mUpdateContents = null;
+				if (dirty != null)
+					redraw(dirty);
+				if (mUpdateAgain) {
+					mUpdateAgain = false;
+					update();
+				}
+			}
+		};
+
+		mUpdateContents.executeOnExecutor(RenderScheduler.get().executor(RenderScheduler.TASK_PAGE, page));
+	}
+
+	private static RectF union(RectF a, RectF b) {
+		if (a == null)
+			return new RectF(b);
+		a.union(b);
+		return a;
+	}
+
+	/* An area of the page in points, in view coordinates. */
+	private Rect viewArea(RectF area) {
+		float scale = mSourceScale*(float)getWidth()/(float)mSize.x;
+		return new Rect((int) Math.floor(area.left * scale), (int) Math.floor(area.top * scale),
+				(int) Math.ceil(area.right * scale), (int) Math.ceil(area.bottom * scale));
+	}
+
+	/* Redraw an area of the page, in page points, in every bitmap showing it. */
+	private void redraw(RectF dirty) {
+		if (mEntireRendered) {
+			mEntireDirty = union(mEntireDirty, dirty);
+			updateEntire();
+		} else {
+			// The render under way may have started from the old contents
+			if (mDrawEntire != null) {
+				mDrawEntire.cancel();
+				mDrawEntire = null;
+			}
+			cancelPreview();
+			renderEntire();
+		}
+
+		mHqDirty = union(mHqDirty, dirty);
+		if (mTileCache != null) {
+			mTileCache.removeOtherSizes(mPageNumber, getWidth(), getHeight());
+			// Tiles on screen are redrawn in place, the rest only when next needed
+			mTileCache.removeArea(mPageNumber, getWidth(), getHeight(), viewArea(dirty),
+					visibleArea(getLeft(), getTop(), getWidth(), getHeight()));
+		}
+		updateHq(true);
+	}
+
+	private void updateEntire() {
+		// A cancelled update leaves its area in mEntireDirty for this one
 		if (mDrawEntire != null) {
 			mDrawEntire.cancel();
 			mDrawEntire = null;
 		}
 
-		if (mDrawPatch != null) {
-			mDrawPatch.cancel();
-			mDrawPatch = null;
-		}
-
-		// Render the page in the background
-		mDrawEntire = new CancellableAsyncTask<Void, Void>(getUpdatePageTask(mEntireBm, mSize.x, mSize.y, 0, 0, mSize.x, mSize.y)) {
+		final RectF dirty = new RectF(mEntireDirty);
+		mDrawEntire = new CancellableAsyncTask<Void, Void>(getUpdatePageTask(mEntireBm, mSize.x, mSize.y, 0, 0, mSize.x, mSize.y, dirty)) {
 
 			public void onPostExecute(Void result) {
-				mEntire.setImageBitmap(mEntireBm);
-				mEntire.invalidate();
+				mEntireDirty = null;
+				mEntire.invalidate(viewArea(dirty));
 			}
 		};
 
+		mDrawEntire.setPriority(RenderScheduler.TASK_PAGE, mPageNumber);
 		mDrawEntire.execute();
-
-		updateHq(true);
 	}
 
 	public void removeHq() {
+			cancelTiles();
+
 			// Stop the drawing of the patch if still going
 			if (mDrawPatch != null) {
 				mDrawPatch.cancel();
@@ -480,6 +777,133 @@ public class PageView extends ViewGroup {
 			}
 	}
 
+	private void cancelTiles() {
+		for (CancellableAsyncTask<Void,Void> task : mDrawTiles.values())
+			task.cancel();
+		mDrawTiles.clear();
+	}
+
+	// The part of the page that is on screen, relative to the view top left
+	private Rect visibleArea(int left, int top, int width, int height) {
+		Rect visible = new Rect(-left, -top, mParentSize.x - left, mParentSize.y - top);
+		if (!visible.intersect(0, 0, width, height))
+			return null;
+		return visible;
+	}
+
+	private void updateTiles(final boolean update) {
+		final int pageW = getWidth();
+		final int pageH = getHeight();
+		if (pageW == mSize.x || pageH == mSize.y) {
+			// Unzoomed, the entire bitmap is as good as it gets
+			cancelTiles();
+			return;
+		}
+
+		Rect visible = visibleArea(getLeft(), getTop(), pageW, pageH);
+		if (visible == null)
+			return;
+		int col0 = visible.left / TileCache.TILE_SIZE;
+		int row0 = visible.top / TileCache.TILE_SIZE;
+		int col1 = (visible.right - 1) / TileCache.TILE_SIZE;
+		int row1 = (visible.bottom - 1) / TileCache.TILE_SIZE;
+
+		// Stop rendering tiles that have scrolled away or belong to another
+		// zoom. On an update, tiles under way may show the old contents.
+		Iterator<HashMap.Entry<TileCache.Key, CancellableAsyncTask<Void,Void>>> it = mDrawTiles.entrySet().iterator();
+		while (it.hasNext()) {
+			HashMap.Entry<TileCache.Key, CancellableAsyncTask<Void,Void>> entry = it.next();
+			TileCache.Key key = entry.getKey();
+			if (update || key.pageW != pageW || key.pageH != pageH
+					|| key.col < col0 || key.col > col1 || key.row < row0 || key.row > row1) {
+				entry.getValue().cancel();
+				it.remove();
+				if (update)
+					mTileCache.remove(key);
+			}
+		}
+
+		// Only tiles under the edited area need redrawing on an update
+		Rect dirty = null;
+		if (update && mHqDirty != null) {
+			dirty = viewArea(mHqDirty);
+			mHqDirty = null;
+		}
+
+		if (mTileView == null) {
+			mTileView = new View(mContext) {
+				@Override
+				protected void onDraw(final Canvas canvas) {
+					int w = getWidth();
+					int h = getHeight();
+					Rect visible = visibleArea(PageView.this.getLeft(), PageView.this.getTop(), w, h);
+					if (mIsBlank || visible == null)
+						return;
+					for (int row = visible.top / TileCache.TILE_SIZE; row <= (visible.bottom - 1) / TileCache.TILE_SIZE; row++) {
+						for (int col = visible.left / TileCache.TILE_SIZE; col <= (visible.right - 1) / TileCache.TILE_SIZE; col++) {
+							Bitmap bm = mTileCache.get(new TileCache.Key(mPageNumber, w, h, col, row));
+							if (bm != null)
+								canvas.drawBitmap(bm, col * TileCache.TILE_SIZE, row * TileCache.TILE_SIZE, null);
+						}
+					}
+				}
+			};
+			addView(mTileView);
+			mTileView.layout(0, 0, pageW, pageH);
+			mSearchView.bringToFront();
+		}
+
+		for (int row = row0; row <= row1; row++) {
+			for (int col = col0; col <= col1; col++) {
+				TileCache.Key key = new TileCache.Key(mPageNumber, pageW, pageH, col, row);
+				if (mDrawTiles.containsKey(key))
+					continue;
+				boolean stale = dirty != null && Rect.intersects(dirty, tileArea(col, row));
+				if (mTileCache.get(key) != null && !stale)
+					continue;
+				drawTile(key, stale);
+			}
+		}
+
+		mTileView.invalidate();
+	}
+
+	private static Rect tileArea(int col, int row) {
+		int left = col * TileCache.TILE_SIZE;
+		int top = row * TileCache.TILE_SIZE;
+		return new Rect(left, top, left + TileCache.TILE_SIZE, top + TileCache.TILE_SIZE);
+	}
+
+	/* A stale tile stays on screen until its replacement is drawn. */
+	private void drawTile(final TileCache.Key key, boolean stale) {
+		final Bitmap bm = BitmapPool.get().acquire(TileCache.TILE_SIZE, TileCache.TILE_SIZE, Config.ARGB_8888);
+		final Bitmap old = stale ? mTileCache.get(key) : null;
+		final Rect area = tileArea(key.col, key.row);
+
+		CancellableTaskDefinition<Void, Void> task =
+				getDrawPageTask(bm, key.pageW, key.pageH, area.left, area.top, TileCache.TILE_SIZE, TileCache.TILE_SIZE);
+
+		CancellableAsyncTask<Void,Void> drawTile = new CancellableAsyncTask<Void,Void>(task) {
+			@Override
+			public void onPostExecute(Void result) {
+				mDrawTiles.remove(key);
+				mTileCache.put(key, bm);
+				mTileView.invalidate(area);
+			}
+
+			@Override
+			public void onCancelled() {
+				BitmapPool.get().release(bm);
+				// Do not leave the stale tile to be shown again later
+				if (old != null && mTileCache.get(key) == old)
+					mTileCache.remove(key);
+			}
+		};
+		mDrawTiles.put(key, drawTile);
+		drawTile.setPriority(RenderScheduler.TASK_HQ, mPageNumber);
+		drawTile.execute();
+	}
+
 	public int getPage() {
 		return mPageNumber;
 	}
@@ -516,9 +940,36 @@ public class PageView extends ViewGroup {
 		return 0;
 	}
 
+	/* A render into bm. Cancelling does not wait for the render to stop, so
+	 * the pool is kept from handing bm out again until it has. */
+	protected static abstract class RenderTaskDefinition extends MuPDFCancellableTaskDefinition<Void, Void> {
+		private final Bitmap bm;
+
+		RenderTaskDefinition(Bitmap bm) {
+			this.bm = bm;
+			BitmapPool.get().hold(bm);
+		}
+
+		@Override
+		public void doCleanup() {
+			super.doCleanup();
+			BitmapPool.get().unhold(bm);
+		}
+	}
+
+	/* Draw the dirty area, in page points, or all of it if null. The core
+	 * does not serialise renders, so keep two tasks from drawing into the
+	 * same bitmap at once. */
+	protected void renderInto(Bitmap bm, int page, int sizeX, int sizeY,
+			int patchX, int patchY, int patchWidth, int patchHeight, RectF dirty, Cookie cookie) {
+		synchronized (bm) {
+			mCore.updatePage(bm, page, sizeX, sizeY, patchX, patchY, patchWidth, patchHeight, dirty, cookie);
+		}
+	}
+
 	protected CancellableTaskDefinition<Void, Void> getDrawPageTask(final Bitmap bm, final int sizeX, final int sizeY,
 			final int patchX, final int patchY, final int patchWidth, final int patchHeight) {
-		return new MuPDFCancellableTaskDefinition<Void, Void>() {
+		return new RenderTaskDefinition(bm) {
 			@Override
 			public Void doInBackground(Cookie cookie, Void ... params) {
 				// Workaround bug in Android Honeycomb 3.x, where the bitmap generation count
@@ -526,25 +977,29 @@ public class PageView extends ViewGroup {
 				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
 						Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
 					bm.eraseColor(0);
-				mCore.drawPage(bm, mPageNumber, sizeX, sizeY, patchX, patchY, patchWidth, patchHeight, cookie);
+				renderInto(bm, mPageNumber, sizeX, sizeY, patchX, patchY, patchWidth, patchHeight, null, cookie);
 				return null;
 			}
 		};
 
 	}
 
+	/* Redraw only the dirty area, in page points, or all of it if null. */
 	protected CancellableTaskDefinition<Void, Void> getUpdatePageTask(final Bitmap bm, final int sizeX, final int sizeY,
-			final int patchX, final int patchY, final int patchWidth, final int patchHeight)
+			final int patchX, final int patchY, final int patchWidth, final int patchHeight, final RectF dirty)
 	{
-		return new MuPDFCancellableTaskDefinition<Void, Void>() {
+		return new RenderTaskDefinition(bm) {
 			@Override
 			public Void doInBackground(Cookie cookie, Void ... params) {
 				// Workaround bug in Android Honeycomb 3.x, where the bitmap generation count
-				// is not incremented when drawing.
+				// is not incremented when drawing. Erasing means redrawing all of it.
+				RectF area = dirty;
 				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
-						Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+						Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
 					bm.eraseColor(0);
-				mCore.updatePage(bm, mPageNumber, sizeX, sizeY, patchX, patchY, patchWidth, patchHeight, cookie);
+					area = null;
+				}
+				renderInto(bm, mPageNumber, sizeX, sizeY, patchX, patchY, patchWidth, patchHeight, area, cookie);
 				return null;
 			}
 		};
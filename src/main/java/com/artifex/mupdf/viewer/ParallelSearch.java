@@ -0,0 +1,163 @@
+package com.artifex.mupdf.viewer;
+
+import android.os.Process;
+
+import com.artifex.mupdf.fitz.Document;
+import com.artifex.mupdf.fitz.Quad;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Searches several pages at once, each worker thread on its own instance of
+ * the document so that they neither share page state nor queue up behind the
+ * core's lock. Pages are handed out one at a time in search order, so when a
+ * hit turns up every page before it is already being searched; we wait for
+ * those and return the first hit in order. Workers stop taking pages beyond
+ * the best hit so far. */
+public class ParallelSearch {
+	private static final int MAX_WORKERS = 4;
+
+	public interface Progress {
+		/* Called on a worker thread as each page is started. */
+		void onPage(int page);
+	}
+
+	public interface Listener {
+		/* Called on a worker thread for each page with hits, in no
+		 * particular order. */
+		void onHits(int page, Quad hits[]);
+	}
+
+	private final MuPDFCore mCore;
+	private final int mWorkers;
+
+	public ParallelSearch(MuPDFCore core) {
+		this(core, Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_WORKERS)));
+	}
+
+	public ParallelSearch(MuPDFCore core, int workers) {
+		mCore = core;
+		mWorkers = workers;
+	}
+
+	private static class Run {
+		final String text;
+		final int start;
+		final int direction;
+		final int count;
+		final BitSet candidates;
+		final Progress progress;
+		final Listener listener; // Find all, rather than the first hit
+		final AtomicInteger next = new AtomicInteger();
+		volatile boolean stopped;
+		int best;
+		Quad bestHits[];
+
+		Run(String text, int start, int direction, int count, BitSet candidates, Progress progress, Listener listener) {
+			this.text = text;
+			this.start = start;
+			this.direction = direction;
+			this.count = count;
+			this.candidates = candidates;
+			this.progress = progress;
+			this.listener = listener;
+			best = count;
+		}
+
+		synchronized int best() {
+			return best;
+		}
+
+		synchronized void found(int step, Quad hits[]) {
+			if (step < best) {
+				best = step;
+				bestHits = hits;
+			}
+		}
+	}
+
+	public SearchTaskResult search(String text, int start, int direction, Progress progress) throws InterruptedException {
+		return search(text, start, direction, null, progress);
+	}
+
+	/* Search from page start onwards in direction (+1 or -1), skipping pages
+	 * not in candidates if that is given. Returns the first page with hits in
+	 * that order, or null. Blocks until done; if the calling thread is
+	 * interrupted, the workers are told to stop. */
+	public SearchTaskResult search(String text, int start, int direction, BitSet candidates, Progress progress) throws InterruptedException {
+		int count = direction > 0 ? mCore.countPages() - start : start + 1;
+		if (start < 0 || count <= 0)
+			return null;
+
+		Run run = new Run(text, start, direction, count, candidates, progress, null);
+		execute(run);
+
+		synchronized (run) {
+			if (run.best >= count)
+				return null;
+			return new SearchTaskResult(text, start + run.best * direction, run.bestHits);
+		}
+	}
+
+	/* Search every page, passing the hits to listener as they are found.
+	 * Blocks until done, or the calling thread is interrupted. */
+	public void searchAll(String text, BitSet candidates, Progress progress, Listener listener) throws InterruptedException {
+		int count = mCore.countPages();
+		if (count > 0)
+			execute(new Run(text, 0, 1, count, candidates, progress, listener));
+	}
+
+	private void execute(final Run run) throws InterruptedException {
+		Thread threads[] = new Thread[Math.min(mWorkers, run.count)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread("ParallelSearch #" + (i + 1)) {
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					work(run);
+				}
+			};
+			threads[i].start();
+		}
+
+		try {
+			for (Thread t : threads)
+				t.join();
+		} catch (InterruptedException x) {
+			run.stopped = true;
+			throw x;
+		}
+	}
+
+	private void work(Run run) {
+		// Without a document of our own, share the core's
+		Document doc = mCore.acquireWorkerDocument();
+		try {
+			while (!run.stopped) {
+				int step = run.next.getAndIncrement();
+				if (step >= run.best())
+					break;
+				int page = run.start + step * run.direction;
+				if (run.candidates != null && !run.candidates.get(page))
+					continue;
+				if (run.progress != null)
+					run.progress.onPage(page);
+				Quad hits[] = null;
+				try {
+					hits = mCore.searchPage(page, run.text, doc);
+				} catch (RuntimeException x) {
+					// A broken page should not end the search
+					System.out.println(x);
+				}
+				if (hits != null && hits.length > 0) {
+					if (run.listener != null)
+						run.listener.onHits(page, hits);
+					else
+						run.found(step, hits);
+				}
+			}
+		} finally {
+			if (doc != null)
+				mCore.releaseWorkerDocument(doc);
+		}
+	}
+}
@@ -35,6 +35,7 @@ public class ReaderView
 	private static final int MOVING_DOWN       = 4;
 
 	private static final int FLING_MARGIN      = 100;
+	private static final int PREFETCH_VELOCITY = 2000; // Fling speed worth one more prefetched page
 	private static final int GAP               = 20;
 
 	private static final float MIN_SCALE        = 1.0f;
@@ -343,8 +344,11 @@ public class ReaderView
 			View v = mChildViews.valueAt(i);
 			onNotInUse(v);
 			removeViewInLayout(v);
+			((PageView) v).releaseBitmaps();
 		}
 		mChildViews.clear();
+		for (View v : mViewCache)
+			((PageView) v).releaseBitmaps();
 		mViewCache.clear();
 
 		requestLayout();
@@ -389,6 +393,8 @@ public class ReaderView
 		if (mScaling)
 			return true;
 
+		prefetch(velocityX, velocityY);
+
 		View v = mChildViews.get(mCurrent);
 		if (v != null) {
 			Rect bounds = getScrollBounds(v);
@@ -461,6 +467,22 @@ public class ReaderView
 		return true;
 	}
 
+	// Get pages beyond the neighbours rendered ahead of time, more of them
+	// the faster the fling.
+	private void prefetch(float velocityX, float velocityY) {
+		int direction;
+		float velocity;
+		switch (directionOfTravel(velocityX, velocityY)) {
+		case MOVING_LEFT:  direction = HORIZONTAL_SCROLLING ? 1 : 0; velocity = velocityX; break;
+		case MOVING_RIGHT: direction = HORIZONTAL_SCROLLING ? -1 : 0; velocity = velocityX; break;
+		case MOVING_UP:    direction = HORIZONTAL_SCROLLING ? 0 : 1; velocity = velocityY; break;
+		case MOVING_DOWN:  direction = HORIZONTAL_SCROLLING ? 0 : -1; velocity = velocityY; break;
+		default: return;
+		}
+		if (direction != 0)
+			mAdapter.prefetch(mCurrent, direction, 1 + (int) (Math.abs(velocity) / PREFETCH_VELOCITY));
+	}
+
 	public void onLongPress(MotionEvent e) { }
 
 	public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX,
@@ -579,6 +601,7 @@ public class ReaderView
 		}
 		catch (java.lang.OutOfMemoryError e) {
 			System.out.println("Out of memory during layout");
+			Metrics.count(Metrics.LAYOUT_OOM);
 		}
 	}
 
@@ -936,6 +959,8 @@ public class ReaderView
 		if (SearchTaskResult.get() != null
 				&& SearchTaskResult.get().pageNumber == i)
 			((PageView) v).setSearchBoxes(SearchTaskResult.get().searchBoxes);
+		else if (SearchHits.get() != null)
+			((PageView) v).setSearchBoxes(SearchHits.get().get(i));
 		else
 			((PageView) v).setSearchBoxes(null);
 
@@ -943,6 +968,7 @@ public class ReaderView
 	}
 
 	protected void onMoveToChild(int i) {
+		RenderScheduler.get().setCurrentPage(i);
 		if (SearchTaskResult.get() != null
 				&& SearchTaskResult.get().pageNumber != i) {
 			SearchTaskResult.set(null);
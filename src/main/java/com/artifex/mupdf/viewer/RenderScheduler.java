@@ -0,0 +1,126 @@
+package com.artifex.mupdf.viewer;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Runs the viewer's background work on a small pool instead of AsyncTask's
+ * single serial queue. Waiting work is ordered so that the visible page is
+ * drawn first, then its HQ patch, then the neighbouring pages, and only
+ * then sizing, link and search work. */
+public class RenderScheduler {
+	public static final int TASK_PAGE   = 0; // Render at minimum zoom, visible or neighbour
+	public static final int TASK_HQ     = 1;
+	public static final int TASK_SIZING = 2;
+	public static final int TASK_LINKS  = 3;
+	public static final int TASK_SEARCH = 4;
+
+	private static final int RANK_VISIBLE   = 0;
+	private static final int RANK_HQ        = 1;
+	private static final int RANK_NEIGHBOUR = 2;
+	private static final int RANK_SIZING    = 3;
+	private static final int RANK_LINKS     = 4;
+	private static final int RANK_SEARCH    = 5;
+
+	private static RenderScheduler singleton;
+
+	private final PriorityBlockingQueue<Runnable> mQueue = new PriorityBlockingQueue<Runnable>();
+	private final ThreadPoolExecutor mPool;
+	private final AtomicInteger mSequence = new AtomicInteger();
+	private int mCurrentPage;
+
+	private class Job implements Runnable, Comparable<Job> {
+		final int kind;
+		final int page;
+		final int sequence;
+		final Runnable command;
+		int rank;
+		int distance;
+
+		Job(int kind, int page, Runnable command) {
+			this.kind = kind;
+			this.page = page;
+			this.command = command;
+			sequence = mSequence.getAndIncrement();
+		}
+
+		void rate(int currentPage) {
+			switch (kind) {
+			case TASK_PAGE:   rank = page == currentPage ? RANK_VISIBLE : RANK_NEIGHBOUR; break;
+			case TASK_HQ:     rank = RANK_HQ; break;
+			case TASK_SIZING: rank = RANK_SIZING; break;
+			case TASK_LINKS:  rank = RANK_LINKS; break;
+			default:          rank = RANK_SEARCH; break;
+			}
+			distance = page < 0 ? Integer.MAX_VALUE : Math.abs(page - currentPage);
+		}
+
+		public void run() {
+			command.run();
+		}
+
+		public int compareTo(Job other) {
+			if (rank != other.rank)
+				return rank < other.rank ? -1 : 1;
+			if (distance != other.distance)
+				return distance < other.distance ? -1 : 1;
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	private RenderScheduler() {
+		int threads = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+		mPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, mQueue,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(final Runnable r) {
+						return new Thread("RenderScheduler #" + count.incrementAndGet()) {
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						};
+					}
+				});
+	}
+
+	public static synchronized RenderScheduler get() {
+		if (singleton == null)
+			singleton = new RenderScheduler();
+		return singleton;
+	}
+
+	/* An executor that queues its work with the given kind and page, suitable
+	 * for AsyncTask.executeOnExecutor(). */
+	public Executor executor(final int kind, final int page) {
+		return new Executor() {
+			public void execute(Runnable command) {
+				Job job = new Job(kind, page, command);
+				synchronized (RenderScheduler.this) {
+					job.rate(mCurrentPage);
+					mPool.execute(job);
+				}
+			}
+		};
+	}
+
+	/* Re-rank the waiting work around a new current page. */
+	public synchronized void setCurrentPage(int page) {
+		if (page == mCurrentPage)
+			return;
+		mCurrentPage = page;
+
+		ArrayList<Runnable> waiting = new ArrayList<Runnable>();
+		mQueue.drainTo(waiting);
+		for (Runnable r : waiting)
+			((Job) r).rate(page);
+		mQueue.addAll(waiting);
+	}
+}
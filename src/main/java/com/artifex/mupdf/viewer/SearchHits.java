@@ -0,0 +1,110 @@
+package com.artifex.mupdf.viewer;
+
+import com.artifex.mupdf.fitz.Quad;
+
+import java.util.Arrays;
+
+/* Every hit of a "find all" search, filled in page by page while the search
+ * runs. Kept in primitive arrays rather than as Quad objects: the pages with
+ * hits in order, and for each the start of its quads in one flat array of
+ * coordinates, eight floats per quad. */
+public class SearchHits {
+	private static final int FLOATS_PER_QUAD = 8;
+
+	public final String txt;
+	private int pages[] = new int[16];
+	private int starts[] = new int[16];
+	private int counts[] = new int[16];
+	private int size;
+	private float coords[] = new float[16 * FLOATS_PER_QUAD];
+	private int coordCount;
+	private int hitCount;
+	private boolean complete;
+	static private SearchHits singleton;
+
+	public SearchHits(String _txt) {
+		txt = _txt;
+	}
+
+	static public SearchHits get() {
+		return singleton;
+	}
+
+	static public void set(SearchHits r) {
+		singleton = r;
+	}
+
+	/* Pages may arrive in any order. */
+	public synchronized void add(int page, Quad quads[]) {
+		int i = Arrays.binarySearch(pages, 0, size, page);
+		if (i >= 0 || quads == null || quads.length == 0)
+			return;
+		i = -i - 1;
+
+		if (size == pages.length) {
+			pages = Arrays.copyOf(pages, size * 2);
+			starts = Arrays.copyOf(starts, size * 2);
+			counts = Arrays.copyOf(counts, size * 2);
+		}
+		System.arraycopy(pages, i, pages, i + 1, size - i);
+		System.arraycopy(starts, i, starts, i + 1, size - i);
+		System.arraycopy(counts, i, counts, i + 1, size - i);
+		pages[i] = page;
+		starts[i] = coordCount;
+		counts[i] = quads.length;
+		size++;
+
+		int needed = coordCount + quads.length * FLOATS_PER_QUAD;
+		if (needed > coords.length)
+			coords = Arrays.copyOf(coords, Math.max(needed, coords.length * 2));
+		for (Quad q : quads) {
+			coords[coordCount++] = q.ul_x;
+			coords[coordCount++] = q.ul_y;
+			coords[coordCount++] = q.ur_x;
+			coords[coordCount++] = q.ur_y;
+			coords[coordCount++] = q.ll_x;
+			coords[coordCount++] = q.ll_y;
+			coords[coordCount++] = q.lr_x;
+			coords[coordCount++] = q.lr_y;
+		}
+		hitCount += quads.length;
+	}
+
+	/* The hits on a page, or null if there are none. */
+	public synchronized Quad[] get(int page) {
+		int i = Arrays.binarySearch(pages, 0, size, page);
+		if (i < 0)
+			return null;
+		Quad quads[] = new Quad[counts[i]];
+		for (int k = 0, c = starts[i]; k < quads.length; k++, c += FLOATS_PER_QUAD)
+			quads[k] = new Quad(coords[c], coords[c+1], coords[c+2], coords[c+3],
+					coords[c+4], coords[c+5], coords[c+6], coords[c+7]);
+		return quads;
+	}
+
+	/* The nearest page with hits after page in direction (+1 or -1), or -1. */
+	public synchronized int nextPage(int page, int direction) {
+		int i = Arrays.binarySearch(pages, 0, size, page);
+		if (direction > 0)
+			i = i >= 0 ? i + 1 : -i - 1;
+		else
+			i = i >= 0 ? i - 1 : -i - 2;
+		return i >= 0 && i < size ? pages[i] : -1;
+	}
+
+	public synchronized int getPageCount() {
+		return size;
+	}
+
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	synchronized void setComplete() {
+		complete = true;
+	}
+}
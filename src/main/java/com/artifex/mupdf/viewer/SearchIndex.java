@@ -0,0 +1,291 @@
+package com.artifex.mupdf.viewer;
+
+import com.artifex.mupdf.fitz.Document;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/* An inverted index of the words of a document: for every word, the pages
+ * it is on and its position among the words of each page. It is built in
+ * the background from each page's structured text, page by page in order,
+ * and saved once complete so that the next open can load it instead.
+ *
+ * The index only narrows a search down to candidate pages; fitz still finds
+ * the exact hits on those. Since fitz matches text anywhere inside words, a
+ * query word matches every indexed word containing it, and the words of a
+ * query must follow each other on the page. Pages not indexed yet are
+ * always candidates.
+ *
+ * Building one reads every page, so it is only worth it for documents long
+ * enough that a plain search is slow; it can also be turned off. An index
+ * is for the layout the document had when it was made, and is given up if
+ * the document is laid out again before it is built. */
+public class SearchIndex {
+	private static final int MAGIC = 0x4d505358; // "MPSX"
+	private static final int VERSION = 1;
+
+	public static final int DEFAULT_MIN_PAGES = 50;
+
+	private static volatile boolean enabled = true;
+	private static volatile int minPages = DEFAULT_MIN_PAGES;
+
+	private final MuPDFCore mCore;
+	private final SearchIndexCache mCache;
+	private final String mFingerprint;
+	private final int mGeneration;
+	private final String mLayoutKey;
+	private final int mPageCount;
+	private Thread mThread;
+	private volatile boolean mStopped;
+
+	/* Word to (page, position) pairs, in page order. */
+	private final HashMap<String, Postings> mTerms = new HashMap<String, Postings>();
+	private int mIndexedPages;
+
+	private static class Postings {
+		int data[] = new int[4];
+		int size;
+
+		void add(int page, int position) {
+			if (size + 2 > data.length) {
+				int grown[] = new int[data.length * 2];
+				System.arraycopy(data, 0, grown, 0, size);
+				data = grown;
+			}
+			data[size++] = page;
+			data[size++] = position;
+		}
+	}
+
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	/* Documents with fewer pages are searched without an index. */
+	public static void setMinPages(int pages) {
+		minPages = pages;
+	}
+
+	/* Whether the document is worth indexing. */
+	public static boolean isWanted(MuPDFCore core) {
+		return enabled && core.countPages() >= minPages;
+	}
+
+	public SearchIndex(MuPDFCore core, SearchIndexCache cache) {
+		mCore = core;
+		mCache = cache;
+		mFingerprint = core.getFingerprint();
+		// The generation first, so that a layout after it shows up there
+		mGeneration = core.getLayoutGeneration();
+		mLayoutKey = core.getLayoutKey();
+		mPageCount = core.countPages();
+	}
+
+	/* Load the saved index, or build one, in the background. */
+	public void start() {
+		mThread = new Thread("SearchIndex") {
+			public void run() {
+				if (!load())
+					build();
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.setPriority(Thread.MIN_PRIORITY);
+		mThread.start();
+	}
+
+	public void stop() {
+		mStopped = true;
+	}
+
+	/* Split text into lower case words, the way it is indexed. */
+	private static ArrayList<String> words(String text) {
+		ArrayList<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i < text.length(); ) {
+			int c = text.codePointAt(i);
+			i += Character.charCount(c);
+			if (Character.isLetterOrDigit(c)) {
+				word.appendCodePoint(c);
+			} else if (word.length() > 0) {
+				words.add(word.toString().toLowerCase(Locale.ROOT));
+				word.setLength(0);
+			}
+		}
+		if (word.length() > 0)
+			words.add(word.toString().toLowerCase(Locale.ROOT));
+		return words;
+	}
+
+	private void build() {
+		Document doc = mCore.acquireWorkerDocument(mGeneration);
+		if (doc == null)
+			return;
+		try {
+			for (int i = 0; i < mPageCount && !mStopped; i++) {
+				ArrayList<String> words;
+				try {
+					words = pageWords(doc, i);
+				} catch (RuntimeException x) {
+					// Leave the rest of the document to plain search
+					System.out.println(x);
+					return;
+				}
+				synchronized (this) {
+					for (int pos = 0; pos < words.size(); pos++) {
+						Postings p = mTerms.get(words.get(pos));
+						if (p == null) {
+							p = new Postings();
+							mTerms.put(words.get(pos), p);
+						}
+						p.add(i, pos);
+					}
+					mIndexedPages = i + 1;
+				}
+			}
+		} finally {
+			mCore.releaseWorkerDocument(doc);
+		}
+		// Not if our pages were read for a layout since given up
+		if (!mStopped && mCore.getLayoutGeneration() == mGeneration)
+			save();
+	}
+
+	/* Lines end words, as they do for fitz's search. */
+	private ArrayList<String> pageWords(Document doc, int pageNum) {
+		return words(mCore.getPageText(pageNum, doc));
+	}
+
+	private boolean load() {
+		File file = mCache.get(mFingerprint, mLayoutKey);
+		if (file == null)
+			return false;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != mPageCount)
+				return false;
+			HashMap<String, Postings> terms = new HashMap<String, Postings>();
+			int count = in.readInt();
+			for (int i = 0; i < count && !mStopped; i++) {
+				String term = in.readUTF();
+				Postings p = new Postings();
+				p.size = in.readInt();
+				p.data = new int[Math.max(p.size, 4)];
+				for (int k = 0; k < p.size; k++)
+					p.data[k] = in.readInt();
+				terms.put(term, p);
+			}
+			if (mStopped)
+				return true;
+			synchronized (this) {
+				mTerms.putAll(terms);
+				mIndexedPages = mPageCount;
+			}
+			return true;
+		} catch (IOException x) {
+			System.out.println(x);
+			return false;
+		} finally {
+			if (in != null)
+				try { in.close(); } catch (IOException x) { }
+		}
+	}
+
+	private void save() {
+		File tmp = mCache.temporary(mFingerprint, mLayoutKey);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+			synchronized (this) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(mPageCount);
+				out.writeInt(mTerms.size());
+				for (Map.Entry<String, Postings> e : mTerms.entrySet()) {
+					Postings p = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeInt(p.size);
+					for (int k = 0; k < p.size; k++)
+						out.writeInt(p.data[k]);
+				}
+			}
+			out.close();
+			out = null;
+			mCache.put(mFingerprint, mLayoutKey, tmp);
+		} catch (IOException x) {
+			System.out.println(x);
+			tmp.delete();
+		} finally {
+			if (out != null)
+				try { out.close(); } catch (IOException x) { }
+		}
+	}
+
+	/* Postings of every indexed word containing the query word. */
+	private ArrayList<Postings> matching(String word) {
+		ArrayList<Postings> list = new ArrayList<Postings>();
+		Postings exact = mTerms.get(word);
+		if (exact != null)
+			list.add(exact);
+		for (Map.Entry<String, Postings> e : mTerms.entrySet())
+			if (e.getValue() != exact && e.getKey().contains(word))
+				list.add(e.getValue());
+		return list;
+	}
+
+	private static long key(int page, int position) {
+		return ((long) page << 32) | (position & 0xffffffffL);
+	}
+
+	/**
+	 * The pages that may hold the text, or null if the index cannot tell
+	 * (a different layout, or no words in the text). Pages not indexed yet
+	 * are included.
+	 */
+	public BitSet candidates(String text) {
+		ArrayList<String> words = words(text);
+		if (words.isEmpty() || !mLayoutKey.equals(mCore.getLayoutKey()))
+			return null;
+
+		BitSet pages = new BitSet(mPageCount);
+		synchronized (this) {
+			// Start of each run of query words found so far, as (page, position)
+			HashSet<Long> starts = new HashSet<Long>();
+			for (Postings p : matching(words.get(0)))
+				for (int k = 0; k < p.size; k += 2)
+					starts.add(key(p.data[k], p.data[k+1]));
+
+			for (int w = 1; w < words.size() && !starts.isEmpty(); w++) {
+				HashSet<Long> next = new HashSet<Long>();
+				for (Postings p : matching(words.get(w)))
+					for (int k = 0; k < p.size; k += 2) {
+						Long start = key(p.data[k], p.data[k+1] - w);
+						if (starts.contains(start))
+							next.add(start);
+					}
+				starts = next;
+			}
+
+			for (Long start : starts)
+				pages.set((int) (start >>> 32));
+			pages.set(mIndexedPages, mPageCount);
+		}
+		return pages;
+	}
+}
@@ -0,0 +1,42 @@
+package com.artifex.mupdf.viewer;
+
+import java.io.File;
+
+/* Full-text indexes of documents, one per document fingerprint and layout,
+ * since reflowing a document moves its words to other pages. */
+public class SearchIndexCache extends DiskCache {
+	private static final String SUFFIX = ".index";
+
+	public static final long DEFAULT_BUDGET = 64 * 1024 * 1024;
+
+	public SearchIndexCache(File dir) {
+		this(dir, DEFAULT_BUDGET);
+	}
+
+	public SearchIndexCache(File dir, long budget) {
+		super(dir, budget);
+	}
+
+	private File file(String fingerprint, String layoutKey) {
+		return file(fingerprint + "-" + layoutKey + SUFFIX);
+	}
+
+	/* The index for a document and layout, or null if we have none. */
+	public File get(String fingerprint, String layoutKey) {
+		File file = file(fingerprint, layoutKey);
+		if (!file.isFile())
+			return null;
+		touch(file);
+		return file;
+	}
+
+	/* Where to write a new index; hand it back to put() when done. */
+	public File temporary(String fingerprint, String layoutKey) {
+		return temporary(file(fingerprint, layoutKey));
+	}
+
+	public void put(String fingerprint, String layoutKey, File tmp) {
+		if (commit(tmp, file(fingerprint, layoutKey)))
+			trim();
+	}
+}
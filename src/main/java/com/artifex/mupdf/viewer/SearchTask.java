@@ -9,6 +9,8 @@ import android.content.DialogInterface;
 import android.os.Handler;
 import android.os.AsyncTask;
 
+import java.util.BitSet;
+
 class ProgressDialogX extends ProgressDialog {
 	public ProgressDialogX(Context context) {
 		super(context);
@@ -31,24 +33,89 @@ public abstract class SearchTask {
 	private static final int SEARCH_PROGRESS_DELAY = 200;
 	private final Context mContext;
 	private final MuPDFCore mCore;
+	private final ParallelSearch mSearch;
+	private SearchIndex mIndex;
 	private final Handler mHandler;
 	private final AlertDialog.Builder mAlertBuilder;
 	private AsyncTask<Void,Integer,SearchTaskResult> mSearchTask;
+	private AsyncTask<Void,Integer,SearchHits> mSearchAllTask;
 
 	public SearchTask(Context context, MuPDFCore core) {
 		mContext = context;
 		mCore = core;
+		mSearch = new ParallelSearch(core);
 		mHandler = new Handler();
 		mAlertBuilder = new AlertDialog.Builder(context);
 	}
 
 	protected abstract void onTextFound(SearchTaskResult result);
 
+	/* Called as a "find all" search finds hits on another page. */
+	protected void onHitsFound(SearchHits hits, int page) {
+	}
+
+	/* Called when a "find all" search has been through every page. */
+	protected void onSearchAllDone(SearchHits hits) {
+	}
+
+	/* Narrow searches down to the pages the index says may hold the text. */
+	public void setIndex(SearchIndex index) {
+		mIndex = index;
+	}
+
 	public void stop() {
 		if (mSearchTask != null) {
 			mSearchTask.cancel(true);
 			mSearchTask = null;
 		}
+		if (mSearchAllTask != null) {
+			mSearchAllTask.cancel(true);
+			mSearchAllTask = null;
+		}
+	}
+
+	/* Find every occurrence of the text, passing them on page by page while
+	 * the search continues. Returns the hits, which fill in as it goes. */
+	public SearchHits goAll(final String text) {
+		if (mCore == null)
+			return null;
+		stop();
+
+		final SearchHits hits = new SearchHits(text);
+		final SearchIndex index = mIndex;
+
+		mSearchAllTask = new AsyncTask<Void,Integer,SearchHits>() {
+			@Override
+			protected SearchHits doInBackground(Void... params) {
+				BitSet candidates = index != null ? index.candidates(text) : null;
+				try {
+					mSearch.searchAll(text, candidates, null, new ParallelSearch.Listener() {
+						public void onHits(int page, Quad quads[]) {
+							hits.add(page, quads);
+							publishProgress(page);
+						}
+					});
+				} catch (InterruptedException x) {
+					// Cancelled
+					return null;
+				}
+				hits.setComplete();
+				return hits;
+			}
+
+			@Override
+			protected void onProgressUpdate(Integer... values) {
+				onHitsFound(hits, values[0].intValue());
+			}
+
+			@Override
+			protected void onPostExecute(SearchHits result) {
+				onSearchAllDone(result);
+			}
+		};
+
+		mSearchAllTask.executeOnExecutor(RenderScheduler.get().executor(RenderScheduler.TASK_SEARCH, 0));
+		return hits;
 	}
 
 	public void go(final String text, int direction, int displayPage, int searchPage) {
@@ -58,6 +125,7 @@ public abstract class SearchTask {
 
 		final int increment = direction;
 		final int startIndex = searchPage == -1 ? displayPage : searchPage + increment;
+		final SearchIndex index = mIndex;
 
 		final ProgressDialogX progressDialog = new ProgressDialogX(mContext);
 		progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
@@ -72,18 +140,17 @@ public abstract class SearchTask {
 		mSearchTask = new AsyncTask<Void,Integer,SearchTaskResult>() {
 			@Override
 			protected SearchTaskResult doInBackground(Void... params) {
-				int index = startIndex;
-
-				while (0 <= index && index < mCore.countPages() && !isCancelled()) {
-					publishProgress(index);
-					Quad searchHits[] = mCore.searchPage(index, text);
-
-					if (searchHits != null && searchHits.length > 0)
-						return new SearchTaskResult(text, index, searchHits);
-
-					index += increment;
+				BitSet candidates = index != null ? index.candidates(text) : null;
+				try {
+					return mSearch.search(text, startIndex, increment, candidates, new ParallelSearch.Progress() {
+						public void onPage(int page) {
+							publishProgress(page);
+						}
+					});
+				} catch (InterruptedException x) {
+					// Cancelled
+					return null;
 				}
-				return null;
 			}
 
 			@Override
@@ -125,6 +192,6 @@ public abstract class SearchTask {
 			}
 		};
 
-		mSearchTask.execute();
+		mSearchTask.executeOnExecutor(RenderScheduler.get().executor(RenderScheduler.TASK_SEARCH, startIndex));
 	}
 }
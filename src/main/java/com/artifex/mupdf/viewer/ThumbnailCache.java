@@ -0,0 +1,157 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* Low resolution renders of pages at minimum zoom, kept on disk so that the
+ * first paint after reopening a document is a cached image while the real
+ * render is still on its way. A thumbnail is identified by the document's
+ * fingerprint, its layout, the page and the size the page is shown at.
+ * Files hold a small header followed by the raw RGB_565 pixels at a quarter
+ * of the shown size, as for a progressive render's preview, and are read back
+ * through a memory mapping. A screen sized page takes some 250KB. */
+public class ThumbnailCache extends DiskCache {
+	private static final int MAGIC = 0x4d505448; // "MPTH"
+	private static final int HEADER_SIZE = 12;
+	private static final int SCALE = 4;
+	private static final String SUFFIX = ".thumb";
+
+	public static final long DEFAULT_BUDGET = 64 * 1024 * 1024;
+
+	/* Check the size of the directory every so many writes. */
+	private static final int TRIM_INTERVAL = 16;
+
+	private final MuPDFCore mCore;
+	private int mWrites;
+	private final Object mWriteLock = new Object();
+	private ByteBuffer mWriteBuf; // Reused for every write, under mWriteLock
+
+	public ThumbnailCache(File dir, MuPDFCore core) {
+		this(dir, core, DEFAULT_BUDGET);
+	}
+
+	public ThumbnailCache(File dir, MuPDFCore core, long budget) {
+		super(dir, budget);
+		mCore = core;
+	}
+
+	private File file(int page, Point size) {
+		return file(mCore.getFingerprint() + "-" + mCore.getLayoutKey()
+				+ "-" + page + "-" + size.x + "x" + size.y + SUFFIX);
+	}
+
+	public boolean has(int page, Point size) {
+		return file(page, size).isFile();
+	}
+
+	/* Returns the thumbnail of a page shown at the given size, in a pooled
+	 * bitmap which the caller releases, or null if we have none. */
+	public Bitmap load(int page, Point size) {
+		File file = file(page, size);
+		if (!file.isFile())
+			return null;
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.capacity() < HEADER_SIZE || buf.getInt() != MAGIC)
+				return discard(file);
+			int w = buf.getInt();
+			int h = buf.getInt();
+			if (w <= 0 || h <= 0 || buf.remaining() != w * h * 2)
+				return discard(file);
+
+			Bitmap bm = BitmapPool.get().acquire(w, h, Bitmap.Config.RGB_565);
+			bm.copyPixelsFromBuffer(buf);
+			touch(file);
+			return bm;
+		} catch (IOException x) {
+			System.out.println(x);
+			return null;
+		} finally {
+			if (raf != null)
+				try { raf.close(); } catch (IOException x) { }
+		}
+	}
+
+	private static Bitmap discard(File file) {
+		file.delete();
+		return null;
+	}
+
+	/* Takes a thumbnail of a page rendered at minimum zoom into the top left
+	 * of bm. The caller holds bm's lock; writing the file happens later in
+	 * the background. */
+	public void store(final int page, Point size, Bitmap bm) {
+		int w = Math.max(1, size.x / SCALE);
+		int h = Math.max(1, size.y / SCALE);
+		final Bitmap thumb = BitmapPool.get().acquire(w, h, Bitmap.Config.RGB_565);
+		Canvas canvas = new Canvas(thumb);
+		canvas.drawBitmap(bm, new Rect(0, 0, size.x, size.y), new Rect(0, 0, w, h), new Paint(Paint.FILTER_BITMAP_FLAG));
+
+		final File file = file(page, size);
+		RenderScheduler.get().executor(RenderScheduler.TASK_SIZING, page).execute(new Runnable() {
+			public void run() {
+				write(file, thumb);
+				BitmapPool.get().release(thumb);
+				synchronized (ThumbnailCache.this) {
+					if (++mWrites % TRIM_INTERVAL != 0)
+						return;
+				}
+				trim();
+			}
+		});
+	}
+
+	private void write(File file, Bitmap thumb) {
+		synchronized (mWriteLock) {
+			int w = thumb.getWidth();
+			int h = thumb.getHeight();
+			int size = HEADER_SIZE + w * h * 2;
+			if (mWriteBuf == null || mWriteBuf.capacity() < size)
+				mWriteBuf = ByteBuffer.allocateDirect(size);
+			mWriteBuf.clear();
+			mWriteBuf.limit(size);
+			write(file, thumb, mWriteBuf);
+		}
+	}
+
+	private void write(File file, Bitmap thumb, ByteBuffer buf) {
+		int w = thumb.getWidth();
+		int h = thumb.getHeight();
+		buf.putInt(MAGIC).putInt(w).putInt(h);
+		thumb.copyPixelsToBuffer(buf);
+		buf.flip();
+
+		File tmp = temporary(file);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			FileChannel channel = out.getChannel();
+			while (buf.hasRemaining())
+				channel.write(buf);
+			out.close();
+			out = null;
+			commit(tmp, file);
+		} catch (IOException x) {
+			System.out.println(x);
+			tmp.delete();
+		} finally {
+			if (out != null)
+				try { out.close(); } catch (IOException x) { }
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+
+/* High quality renders of zoomed pages, cut into fixed size tiles. A tile is
+ * identified by its page, the size the whole page is drawn at (which stands
+ * for the zoom level) and its column and row. */
+public class TileCache {
+	public static final int TILE_SIZE = 256;
+
+	private final LruCache<Key, Bitmap> mTiles;
+
+	public static final class Key {
+		public final int page;
+		public final int pageW;
+		public final int pageH;
+		public final int col;
+		public final int row;
+
+		public Key(int page, int pageW, int pageH, int col, int row) {
+			this.page = page;
+			this.pageW = pageW;
+			this.pageH = pageH;
+			this.col = col;
+			this.row = row;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return page == k.page && pageW == k.pageW && pageH == k.pageH && col == k.col && row == k.row;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = page;
+			h = h * 31 + pageW;
+			h = h * 31 + pageH;
+			h = h * 31 + col;
+			return h * 31 + row;
+		}
+	}
+
+	public TileCache(int kbytes) {
+		mTiles = new LruCache<Key, Bitmap>(kbytes) {
+			@Override
+			protected int sizeOf(Key key, Bitmap bm) {
+				return bm.getByteCount() / 1024;
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, Key key, Bitmap oldBm, Bitmap newBm) {
+				BitmapPool.get().release(oldBm);
+			}
+		};
+	}
+
+	public Bitmap get(Key key) {
+		return mTiles.get(key);
+	}
+
+	public void put(Key key, Bitmap bm) {
+		mTiles.put(key, bm);
+	}
+
+	public void remove(Key key) {
+		mTiles.remove(key);
+	}
+
+	/* Drop a page's tiles at every zoom but the given one. */
+	public void removeOtherSizes(int page, int pageW, int pageH) {
+		ArrayList<Key> keys = new ArrayList<Key>(mTiles.snapshot().keySet());
+		for (Key key : keys)
+			if (key.page == page && (key.pageW != pageW || key.pageH != pageH))
+				mTiles.remove(key);
+	}
+
+	/* Drop a page's tiles at the given size that overlap an area of it,
+	 * in pixels at that size, except those also overlapping keep. */
+	public void removeArea(int page, int pageW, int pageH, Rect area, Rect keep) {
+		ArrayList<Key> keys = new ArrayList<Key>(mTiles.snapshot().keySet());
+		for (Key key : keys) {
+			if (key.page != page || key.pageW != pageW || key.pageH != pageH)
+				continue;
+			int left = key.col * TILE_SIZE;
+			int top = key.row * TILE_SIZE;
+			Rect tile = new Rect(left, top, left + TILE_SIZE, top + TILE_SIZE);
+			if (Rect.intersects(area, tile) && (keep == null || !Rect.intersects(keep, tile)))
+				mTiles.remove(key);
+		}
+	}
+
+	public void clear() {
+		mTiles.evictAll();
+	}
+}